@@ -0,0 +1,164 @@
+/* MicroJava Abstract Syntax Tree
+   =============================
+The syntax tree that the parser records if Parser.ast is set. The nodes
+live in an arena of parallel arrays instead of one object per node (as the
+tokens in TokenBuffer): node n has
+- kind[n]   its kind (Program, Method, If, BinOp, ...),
+- child[n]  its first child and next[n] its next sibling (0 = none),
+- token[n]  the index of its token in the token stream,
+- val[n]    a value (constant, operator, width; see the kinds),
+- obj[n]    the object it declares or denotes, or null.
+Node 0 is not used, so 0 means "no node"; the root is node 1. reset()
+empties the arena but keeps its arrays, so an Ast can be reused for any
+number of compilations.
+
+The tree is only complete if the program has no errors.
+*/
+package MJ;
+
+import java.io.PrintWriter;
+import MJ.SymTab.*;
+
+public class Ast {
+	public static final int  // node kinds; children in brackets
+		Program  =  1,	// obj = program [Const|Var|Class ... Method ...]
+		Const    =  2,	// obj = constant
+		Var      =  3,	// obj = variable (global, field or local)
+		Par      =  4,	// obj = formal parameter
+		Class    =  5,	// obj = class type [Var ...]
+		Method   =  6,	// obj = method [Par ... Var ... Block]
+		Block    =  7,	// [statement ...]
+		Assign   =  8,	// [designator, Expr]
+		If       =  9,	// [Cond, statement, else statement?]
+		While    = 10,	// [Cond, statement]
+		Return   = 11,	// [Expr?]
+		Read     = 12,	// [designator]
+		Print    = 13,	// val = width [Expr]
+		Empty    = 14,	// ;
+		Cond     = 15,	// val = compare operator (Code.eq..ge) [Expr, Expr]
+		BinOp    = 16,	// val = opcode (Code.add..rem) [Expr, Expr]
+		Neg      = 17,	// [Expr]
+		Number   = 18,	// val = value
+		CharCon  = 19,	// val = value
+		Ident    = 20,	// obj = named object
+		Field    = 21,	// obj = field [designator]
+		Index    = 22,	// [designator, Expr]
+		Call     = 23,	// obj = method [designator, Expr ...]; also a statement
+		New      = 24,	// obj = class type
+		NewArray = 25;	// obj = element type [Expr]
+	private static final String[] name = {
+		"?", "Program", "Const", "Var", "Par", "Class", "Method", "Block", "Assign",
+		"If", "While", "Return", "Read", "Print", "Empty", "Cond", "BinOp", "Neg",
+		"Number", "CharCon", "Ident", "Field", "Index", "Call", "New", "NewArray"
+		};
+
+	public int[] kind, child, next, token, val;
+	public Obj[] obj;
+	public int size;		// number of nodes + 1 (node 0 is not used)
+
+	// nodes under construction, innermost last, and their last child so far
+	private int[] open = new int[64], last = new int[64];
+	private int depth;
+
+	public Ast(int capacity) {
+		capacity = Math.max(capacity, 2);
+		kind = new int[capacity]; child = new int[capacity]; next = new int[capacity];
+		token = new int[capacity]; val = new int[capacity];
+		obj = new Obj[capacity];
+		size = 1;
+	}
+
+	public Ast() {
+		this(1 << 12);
+	}
+
+	// Remove all nodes
+	public void reset() {
+		java.util.Arrays.fill(obj, 0, size, null);	// do not keep old symbol tables alive
+		size = 1; depth = 0;
+	}
+
+	//---------- construction (by the parser)
+
+	// A new node that is not linked yet
+	private int alloc(int k, int tok, Obj o, int v) {
+		if (size == kind.length) {
+			int n = 2 * size;
+			kind = java.util.Arrays.copyOf(kind, n); child = java.util.Arrays.copyOf(child, n);
+			next = java.util.Arrays.copyOf(next, n); token = java.util.Arrays.copyOf(token, n);
+			val = java.util.Arrays.copyOf(val, n); obj = java.util.Arrays.copyOf(obj, n);
+		}
+		int x = size++;
+		kind[x] = k; child[x] = 0; next[x] = 0; token[x] = tok; val[x] = v; obj[x] = o;
+		return x;
+	}
+
+	// A new node as the last child of the innermost open node
+	private int add(int k, int tok, Obj o, int v) {
+		int x = alloc(k, tok, o, v);
+		if (depth > 0) { // append x to the children of the innermost open node
+			int p = depth - 1;
+			if (last[p] == 0) child[open[p]] = x; else next[last[p]] = x;
+			last[p] = x;
+		}
+		return x;
+	}
+
+	private void push(int x, int lastChild) {
+		if (depth == open.length) {
+			open = java.util.Arrays.copyOf(open, 2 * depth);
+			last = java.util.Arrays.copyOf(last, 2 * depth);
+		}
+		open[depth] = x; last[depth] = lastChild;
+		depth++;
+	}
+
+	// Add a node without children
+	public int leaf(int k, int tok, Obj o, int v) {
+		return add(k, tok, o, v);
+	}
+
+	// Add a node; the following nodes become its children until close()
+	public int open(int k, int tok, Obj o, int v) {
+		int x = add(k, tok, o, v);
+		push(x, 0);
+		return x;
+	}
+
+	// Finish the innermost open node
+	public void close() {
+		depth--;
+	}
+
+	// Add a node that takes the last child of the innermost open node as
+	// its first child (e.g. the left operand of a BinOp), and open it. The
+	// node takes over the place of that child in the arena, the child moves
+	// to a new node, so no sibling has to be relinked.
+	public int wrap(int k, int tok, Obj o, int v) {
+		int x = last[depth - 1];
+		if (x == 0) return open(k, tok, o, v);	// no child after a syntax error
+		int c = alloc(kind[x], token[x], obj[x], val[x]);
+		child[c] = child[x];
+		kind[x] = k; child[x] = c; token[x] = tok; val[x] = v; obj[x] = o;
+		push(x, c);
+		return x;
+	}
+
+	//---------- output
+
+	// Print the subtree of node x, indented by its depth
+	public void dump(int x, PrintWriter out) {
+		dump(x, 0, out);
+	}
+
+	private void dump(int x, int indent, PrintWriter out) {
+		for (; x != 0; x = next[x]) {
+			for (int i = 0; i < indent; i++) out.print("  ");
+			out.print(name[kind[x]] + " @" + token[x]);
+			if (obj[x] != null) out.print(" " + obj[x].name);
+			if (val[x] != 0) out.print(" " + val[x]);
+			out.println();
+			dump(child[x], indent + 1, out);
+		}
+	}
+}
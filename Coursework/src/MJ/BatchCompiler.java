@@ -0,0 +1,191 @@
+/* MicroJava Batch Compiler
+   =======================
+Compiles many source files in one JVM on a fork-join pool with one worker
+per core. The arguments are source files, directories (searched for *.mj),
+glob patterns (e.g. "progs/**.mj") or @manifest files that list one such
+argument per line. Each object file is written next to its source.
+The options of MJ.Compiler apply to every file. The diagnostic output that
+they select is collected per file and printed in file order when all files
+are compiled, followed by a summary.
+*/
+package MJ;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class BatchCompiler {
+
+	// options of MJ.Compiler that apply to every file
+	private final int levels;		// diagnostic output (see Diagnostics), 0 for none
+	private final boolean pipelined, parallel, optimize;
+
+	public BatchCompiler(int levels, boolean pipelined, boolean parallel, boolean optimize) {
+		this.levels = levels;
+		this.pipelined = pipelined; this.parallel = parallel; this.optimize = optimize;
+	}
+
+	// Compilation of one source file
+	private class Job {
+		String source;
+		int    errors;		// number of errors, -1 if the file could not be compiled
+		String failure;		// reason why the file could not be compiled
+		List<String> messages;	// error messages
+		String diagnostics;	// the diagnostic output selected by levels
+		long   nanos;		// compile time
+
+		Job(String source) {
+			this.source = source;
+		}
+
+		void run() {
+			long start = System.nanoTime();
+			String output = Compiler.objFileName(source);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Diagnostics diag = new Diagnostics(levels, out);
+			try {
+				Compilation c = new Compilation(diag);
+				c.pipelined = pipelined; c.parallel = parallel; c.optimize = optimize;
+				errors = c.compile(source);
+				messages = c.diag.errors();
+				if (errors == 0) {
+					try {
+						c.write(new FileOutputStream(output));
+					} catch (IOException e) {
+						errors = -1; failure = "cannot open output file " + output;
+					}
+				}
+			} catch (IOException e) {
+				errors = -1; failure = "cannot open input file " + source;
+			} catch (RuntimeException e) {	// must not abort the other jobs
+				errors = -1; failure = "compiler failure: " + e;
+			} finally {
+				diag.flush();
+				diagnostics = out.toString();
+				nanos = System.nanoTime() - start;
+			}
+		}
+	}
+
+	// Runs the jobs jobs[lo..hi[ by recursive splitting
+	private static class CompileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Job[] jobs;
+		private final int lo, hi;
+
+		CompileTask(Job[] jobs, int lo, int hi) {
+			this.jobs = jobs; this.lo = lo; this.hi = hi;
+		}
+
+		protected void compute() {
+			if (hi - lo == 1) jobs[lo].run();
+			else {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new CompileTask(jobs, lo, mid), new CompileTask(jobs, mid, hi));
+			}
+		}
+	}
+
+	private static boolean isGlob(String s) {
+		return s.indexOf('*') >= 0 || s.indexOf('?') >= 0 || s.indexOf('[') >= 0 || s.indexOf('{') >= 0;
+	}
+
+	// Add the source files denoted by arg to files
+	private static void collect(String arg, Set<String> files) throws IOException {
+		if (arg.startsWith("@")) {
+			for (String line : Files.readAllLines(Paths.get(arg.substring(1)))) {
+				line = line.trim();
+				if (line.length() > 0 && !line.startsWith("//")) collect(line, files);
+			}
+		} else if (isGlob(arg)) {
+			// walk the longest directory prefix without glob characters
+			String base = "";
+			for (String part : arg.split("/")) {
+				if (isGlob(part)) break;
+				base = base.length() == 0 && !arg.startsWith("/") ? part : base + "/" + part;
+			}
+			Path dir = Paths.get(base);
+			if (!Files.isDirectory(dir)) return;
+			PathMatcher m = FileSystems.getDefault().getPathMatcher("glob:" + arg);
+			try (Stream<Path> s = Files.walk(dir)) {
+				s.filter(p -> Files.isRegularFile(p) && m.matches(p)).forEach(p -> files.add(p.toString()));
+			}
+		} else if (Files.isDirectory(Paths.get(arg))) {
+			try (Stream<Path> s = Files.walk(Paths.get(arg))) {
+				s.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".mj")).forEach(p -> files.add(p.toString()));
+			}
+		} else files.add(arg);
+	}
+
+	// Whether the arguments of MJ.Compiler ask for a batch compilation
+	static boolean isBatch(String args[]) {
+		return args.length > 1 || args[0].startsWith("@") || isGlob(args[0]) || Files.isDirectory(Paths.get(args[0]));
+	}
+
+	// Compile all files denoted by args and print their diagnostic output and a
+	// summary; returns the number of failed files
+	public int run(String args[]) {
+		Set<String> files = new TreeSet<String>();
+		for (String arg : args) {
+			try {
+				collect(arg, files);
+			} catch (IOException e) {
+				System.out.println("-- cannot read " + arg);
+			}
+		}
+		Job[] jobs = new Job[files.size()];
+		int n = 0;
+		for (String f : files) jobs[n++] = new Job(f);
+		if (n == 0) {
+			System.out.println("-- no source files found");
+			return 0;
+		}
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		long start = System.nanoTime();
+		try {
+			pool.invoke(new CompileTask(jobs, 0, n));
+		} finally {
+			pool.shutdown();
+		}
+		long wall = System.nanoTime() - start;
+
+		for (Job j : jobs)
+			if (j.diagnostics.length() > 0) {
+				System.out.println("-- " + j.source + ":");
+				System.out.print(j.diagnostics);
+			}
+
+		// summary
+		int failed = 0, errors = 0;
+		long cpu = 0;
+		for (Job j : jobs) {
+			cpu += j.nanos;
+			if (j.errors != 0) {
+				failed++;
+				if (j.errors > 0) errors += j.errors;
+			}
+		}
+		System.out.println("-- " + n + " files compiled in " + wall / 1000000 + " ms on " + threads
+			+ " threads (" + cpu / 1000000 + " ms compile time)");
+		if (failed > 0) {
+			System.out.println("-- " + failed + " files failed, " + errors + " errors:");
+			for (Job j : jobs) {
+				if (j.errors > 0) {
+					System.out.println("--   " + j.source + ": " + j.errors + " errors");
+					if ((levels & Diagnostics.ERRORS) == 0)	// not printed with the diagnostic output
+						for (String m : j.messages) System.out.println("     " + m);
+				} else if (j.errors < 0) System.out.println("--   " + j.source + ": " + j.failure);
+			}
+		}
+		Job[] slowest = jobs.clone();
+		Arrays.sort(slowest, (a, b) -> Long.compare(b.nanos, a.nanos));
+		System.out.println("-- slowest files:");
+		for (int i = 0; i < Math.min(5, n); i++)
+			System.out.println("--   " + slowest[i].source + ": " + slowest[i].nanos / 1000 / 1000.0 + " ms");
+		return failed;
+	}
+}
@@ -0,0 +1,116 @@
+/* MicroJava Scanner Benchmark
+   ===========================
+   Compares the keyword recognizer of the scanner (Scanner.keyword) with
+   a linear search over the keyword list on an identifier-heavy source,
+   and reports the scanning rate for it and for a comment- and
+   indentation-heavy source.
+   Run with
+     java MJ.BenchScanner [<numberOfLines>]
+*/
+package MJ;
+
+import java.nio.ByteBuffer;
+import MJ.SymTab.Names;
+
+public class BenchScanner {
+	private static final int  // token codes
+		ident     = 1,
+		class_    = 25,
+		while_    = 35,
+		eof       = 36;
+	private static final String key[] = {
+		"class", "else", "final", "if", "new", "print",
+		"program", "read", "return", "void", "while"
+	};
+	private static final String words[] = {
+		"counter", "i", "idx", "value", "names", "printer", "reader", "x1", "newValue",
+		"classes", "elsewhere", "finally", "voided", "whilst", "programs", "returned",
+		"if", "while", "return", "new", "print"
+	};
+
+	// Build an identifier-heavy source with n lines
+	private static byte[] source(int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			String a = words[i % words.length], b = words[(i * 7 + 3) % words.length];
+			sb.append(a).append(i % 100).append(" = ").append(b).append('.').append(a)
+				.append(" + ").append(b).append("[i] * ").append(i).append(";\n");
+		}
+		return sb.toString().getBytes();
+	}
+
+	// Build a source with n deeply indented and commented lines
+	private static byte[] commentSource(int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			if (i % 10 == 0) sb.append("//----------------------------------------------------------------\n//\n");
+			sb.append("\t\t\t\t\t\t        ").append(words[i % words.length]).append(" = x + 1;")
+				.append("    // update the value for iteration ").append(i).append('\n');
+		}
+		return sb.toString().getBytes();
+	}
+
+	// Scan src completely and return the number of tokens
+	private static int scanAll(ByteBuffer src, TokenBuffer b) {
+		int tokens = 0;
+		Scanner scanner = new Scanner(new Names(), new Diagnostics());
+		scanner.init(src.duplicate());
+		do {
+			scanner.fill(b);
+			tokens += b.size;
+		} while (b.kind[b.size - 1] != eof);
+		return tokens;
+	}
+
+	// Keyword recognition as done before: copy the name into a String and search key
+	private static int linearKeyword(ByteBuffer src, int off, int len) {
+		String name = Scanner.string(src, off, len);
+		for (int i = 0; i < key.length; i++)
+			if (name.equals(key[i])) return i;
+		return -1;
+	}
+
+	public static void main(String args[]) {
+		int lines = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		ByteBuffer src = ByteBuffer.wrap(source(lines));
+		TokenBuffer b = new TokenBuffer(1 << 16);
+		for (int round = 0; round < 5; round++) {
+			// collect the positions of all names
+			int names = 0, tokens = 0;
+			int[] off = new int[lines * 8], len = new int[lines * 8];
+			long t0 = System.nanoTime();
+			Scanner scanner = new Scanner(new Names(), new Diagnostics());
+			scanner.init(src.duplicate());
+			do {
+				scanner.fill(b);
+				tokens += b.size;
+				for (int i = 0; i < b.size; i++)
+					if (b.kind[i] == ident || b.kind[i] >= class_ && b.kind[i] <= while_) {
+						off[names] = b.off[i]; len[names] = b.len[i]; names++;
+					}
+			} while (b.kind[b.size - 1] != eof);
+			long t1 = System.nanoTime();
+
+			int hits = 0;
+			for (int i = 0; i < names; i++)
+				if (linearKeyword(src, off[i], len[i]) >= 0) hits++;
+			long t2 = System.nanoTime();
+			for (int i = 0; i < names; i++)
+				if (Scanner.keyword(src, off[i], len[i]) != ident) hits--;
+			long t3 = System.nanoTime();
+
+			System.out.println("round " + round + ": " + tokens + " tokens in " + (t1 - t0) / 1000000 + " ms ("
+				+ (long)(tokens * 1e9 / (t1 - t0)) + " tokens/s); " + names + " names: linear search "
+				+ (t2 - t1) / 1000000 + " ms, perfect hash " + (t3 - t2) / 1000000 + " ms"
+				+ (hits != 0 ? " -- MISMATCH" : ""));
+		}
+		ByteBuffer comments = ByteBuffer.wrap(commentSource(lines));
+		for (int round = 0; round < 5; round++) {
+			long t0 = System.nanoTime();
+			int tokens = scanAll(comments, b);
+			long t1 = System.nanoTime();
+			System.out.println("round " + round + ": comment-heavy source: " + tokens + " tokens in " + (t1 - t0) / 1000000
+				+ " ms (" + (long)(tokens * 1e9 / (t1 - t0)) + " tokens/s, " + comments.capacity() * 1000L / (t1 - t0) + " MB/s)");
+		}
+	}
+}
@@ -65,7 +65,9 @@ public class Code {
 		print       = 51,
 		bread       = 52,
 		bprint      = 53,
-		trap		= 54;
+		trap		= 54,
+		dup         = 55,
+		dup2        = 56;
 	public static final int  // compare operators
 		eq = 0,
 		ne = 1,
@@ -74,43 +76,159 @@ public class Code {
 		gt = 4,
 		ge = 5;
 	private static int[] inverse = {ne, eq, ge, gt, le, lt};
-	private static final int bufSize = 8192;
+	// size of each instruction in bytes (opcode and operands), by opcode
+	private static final byte[] size = new byte[dup2 + 1];
+	static {
+		java.util.Arrays.fill(size, (byte)1);
+		size[load] = 2; size[store] = 2;
+		size[getstatic] = 3; size[putstatic] = 3; size[getfield] = 3; size[putfield] = 3;
+		size[const_] = 5; size[new_] = 3; size[newarray] = 2;
+		for (int op = jmp; op <= jge; op++) size[op] = 3;
+		size[call] = 3; size[enter] = 3; size[trap] = 2;
+	}
+	// The code buffer consists of segments of segSize bytes that are allocated
+	// as the code grows, so existing code is never copied. Code addresses are
+	// signed 16-bit operands of jumps and calls, so the code is at most maxSize bytes.
+	private static final int segBits = 12;
+	private static final int segSize = 1 << segBits;
+	private static final int segMask = segSize - 1;
+	public static final int maxSize = 32768;
+	// The VM reads the operand of load and store and the lsize of enter as
+	// signed bytes, so a method has at most maxLocals local slots.
+	public static final int maxLocals = 127;
+
+	private byte[][] segs;	// code buffer segments
+	private byte[] seg;		// segment holding the byte before pc
+	public int pc;		// next free byte in code buffer
+	public int mainPc;	// pc of main function (set by parser)
+	public int dataSize;	// length of static data in words (set by parser)
+
+	// Methods are identified by their name id, which stays the same when a
+	// method is parsed again (see IncrementalCompilation)
+	private java.util.Map<Integer, Inliner> inlinable;	// methods that can be inlined
+	private java.util.Set<Integer> inlined;	// methods that were inlined
+	private java.util.Set<Integer> called;	// methods that were called
+	private java.util.Map<Integer, Effects> effects;	// what each method may write
+	private Effects calls;	// what the methods called in the current method or loop may write
+
+	private final Compilation comp;
 
-	private static byte[] buf;	// code buffer
-	public static int pc;		// next free byte in code buffer
-	public static int mainPc;	// pc of main function (set by parser)
-	public static int dataSize;	// length of static data in words (set by parser)
+	public Code(Compilation c) {
+		comp = c;
+	}
 
 	//--------------- code buffer access ----------------------
 
-	public static void put(int x) {
-		if (pc >= bufSize) {
-			if (pc == bufSize) Parser.error("program too large");
+	// Return the segment with number n; allocate it if it does not exist yet
+	private byte[] segment(int n) {
+		if (n >= segs.length) segs = java.util.Arrays.copyOf(segs, 2 * n);
+		if (segs[n] == null) segs[n] = new byte[segSize];
+		return segs[n];
+	}
+
+	public void put(int x) {
+		if (pc >= maxSize) {
+			if (pc == maxSize) comp.parser.error("program too large");
+			pc++;
+		} else {
+			int i = pc & segMask;
+			if (i == 0) seg = segment(pc >>> segBits);
+			seg[i] = (byte)x;
 			pc++;
-		} else
-			buf[pc++] = (byte)x;
+		}
 	}
 
-	public static void put2(int x) {
-		put(x>>8); put(x);
+	public void put2(int x) {
+		int i = pc & segMask;
+		if (i != 0 && i <= segSize - 2 && pc < maxSize) { // fits into the current segment
+			seg[i] = (byte)(x>>8); seg[i+1] = (byte)x;
+			pc += 2;
+		} else {
+			put(x>>8); put(x);
+		}
 	}
 
-	public static void put2(int pos, int x) {
-		int oldpc = pc; pc = pos; put2(x); pc = oldpc;
+	// patch the 2 bytes at the absolute position pos
+	public void put2(int pos, int x) {
+		if (pos + 1 < maxSize) {
+			segs[pos >>> segBits][pos & segMask] = (byte)(x>>8); pos++;
+			segs[pos >>> segBits][pos & segMask] = (byte)x;
+		}
 	}
 
-	public static void put4(int x) {
-		put2(x>>16); put2(x);
+	public void put4(int x) {
+		int i = pc & segMask;
+		if (i != 0 && i <= segSize - 4 && pc < maxSize) { // fits into the current segment
+			seg[i] = (byte)(x>>24); seg[i+1] = (byte)(x>>16);
+			seg[i+2] = (byte)(x>>8); seg[i+3] = (byte)x;
+			pc += 4;
+		} else {
+			put2(x>>16); put2(x);
+		}
 	}
 
-	public static int get(int pos) {
-		return buf[pos];
+	public int get(int pos) {
+		return segs[pos >>> segBits][pos & segMask];
+	}
+
+	// Copy the code from..to-1
+	public byte[] copy(int from, int to) {
+		byte[] b = new byte[to - from];
+		for (int i = from, n; i < to; i += n) { // segment by segment
+			n = Math.min(segSize - (i & segMask), to - i);
+			System.arraycopy(segs[i >>> segBits], i & segMask, b, i - from, n);
+		}
+		return b;
+	}
+
+	// Append the bytes b
+	public void put(byte[] b) {
+		if (pc + b.length > maxSize) {
+			for (byte x : b) put(x);
+			return;
+		}
+		for (int i = 0, n; i < b.length; i += n, pc += n) { // segment by segment
+			seg = segment(pc >>> segBits);
+			n = Math.min(segSize - (pc & segMask), b.length - i);
+			System.arraycopy(b, i, seg, pc & segMask, n);
+		}
+	}
+
+	// Discard the code from pos on
+	public void truncate(int pos) {
+		pc = pos;
+		seg = (pos & segMask) == 0 || pos >= maxSize ? null : segs[pos >>> segBits];
+	}
+
+	// Size of the instruction with opcode op in bytes
+	public static int size(int op) {
+		return op > 0 && op < size.length ? size[op] : 1;
+	}
+
+	// Has the code b no side effects, so that running it once instead of
+	// twice gives the same values?
+	public static boolean isPure(byte[] b) {
+		for (int i = 0; i < b.length; i += size(b[i] & 0xff)) {
+			int op = b[i] & 0xff;
+			if (!(op >= load && op <= load3 || op == getstatic || op == getfield
+					|| op >= const0 && op <= shr || op == aload || op == baload
+					|| op == arraylength || op == dup || op == dup2)) return false;
+		}
+		return true;
+	}
+
+	// Copy the code into a single array
+	private byte[] toArray(int len) {
+		byte[] b = new byte[len];
+		for (int n = 0; n * segSize < len; n++)
+			System.arraycopy(segs[n], 0, b, n * segSize, Math.min(segSize, len - n * segSize));
+		return b;
 	}
 
 	//----------------- instruction generation --------------
 
 	// Load the operand x to the expression stack
-	public static void load(Operand x) { // method of class Code
+	public void load(Operand x) { // method of class Code
 		switch(x.kind){
 			case Operand.Con:
 				if(0 <= x.val && x.val <= 5)put(const0+x.val);
@@ -129,17 +247,17 @@ public class Code {
 				if(x.type == Tab.charType)put(baload);else put(aload);
 				break;
 			case Operand.Stack: break;
-			default: Parser.error("cannot load this value");
+			default: comp.parser.error("cannot load this value");
 		}
 		x.kind = Operand.Stack;
 	}
 
 	// Generate an assignment x = y
-	public static void assign(Operand x, Operand y) { // Generate an assignment x = y
+	public void assign(Operand x, Operand y) { // Generate an assignment x = y
 		load(y);
 		switch(x.kind){
 			case Operand.Con:
-				Parser.error("cannot assign a const");
+				comp.parser.error("cannot assign a const");
 				break;
 			case Operand.Static:
 				put(putstatic);put2(x.adr);break;
@@ -153,50 +271,184 @@ public class Code {
 				if(x.type == Tab.charType)put(bastore);else put(astore);
 				break;
 			case Operand.Stack: break;
-			default: Parser.error("cannot assign this value");
+			default: comp.parser.error("cannot assign this value");
+		}
+	}
+
+	// Generate x op c for the int x on the stack and the constant c. A
+	// multiplication by 2^k is a left shift, and so is a division by 2^k a
+	// right shift if x is known to be >= 0 (shr rounds down, div towards 0).
+	public void operation(int op, int c, boolean nonNegative) {
+		int k = Integer.numberOfTrailingZeros(c);
+		if (c > 1 && c == 1 << k && (op == mul || op == div && nonNegative)) {
+			load(new Operand(k));
+			put(op == mul ? shl : shr);
+		} else {
+			load(new Operand(c));
+			put(op);
 		}
 	}
 
 	//------------- jumps ---------------
 
 	// Unconditional jump
-	public static void putJump(int adr) {
+	public void putJump(int adr) {
 		put(jmp);put2(adr);
 	}
 
 	// Conditional jump if op is false
-	public static void putFalseJump(int op, int adr) {
+	public void putFalseJump(int op, int adr) {
 		put(jeq+inverse[op]);put2(adr);
 	}
 
+	// Conditional jump if op is true
+	public void putTrueJump(int op, int adr) {
+		put(jeq+op);put2(adr);
+	}
+
 	// patch jump target at adr so that it jumps to the current pc
-	public static void fixup(int adr) {
+	public void fixup(int adr) {
 		put2(adr,pc);
 	}
 
+	// The code of method m is complete: give its local variables new slots so
+	// that the most used ones get the short load and store forms, and keep
+	// its code if it is small enough to be inlined
+	public void endMethod(Obj m) {
+		Effects e = calls;
+		calls = new Effects();
+		if (!comp.optimize || pc > maxSize) return;
+		SlotAllocator.allocate(this, m, m.adr);
+		e.add(copy(m.adr, pc));
+		effects.put(m.id, e);
+		Inliner x = Inliner.of(copy(m.adr, pc), m.adr);
+		if (x != null) inlinable.put(m.id, x); else inlinable.remove(m.id);
+	}
+
+	// Generate the code of method m inline instead of a call from method
+	// caller, if m can be inlined; the actual parameters are loaded. A
+	// recursive call is never inlined: what is kept for m is its old code.
+	public boolean inline(Obj m, Obj caller) {
+		Inliner x = inlinable.get(m.id);
+		if (x == null || caller == null || m.id == caller.id || pc > maxSize) return false;
+		int base = get(caller.adr + 2) & 0xff;	// lsize of the caller's enter
+		if (base + x.nVars > maxLocals) return false;
+		put2(caller.adr + 1, caller.nPars << 8 | base + x.nVars);
+		x.expand(this, base);
+		inlined.add(m.id);
+		return true;
+	}
+
+	// Generate a call of method m
+	public void putCall(Obj m) {
+		put(call); put2(m.adr);
+		called.add(m.id);
+		calls.add(effects.get(m.id));	// not known yet if m is the current method
+	}
+
+	// What method m may write (null if not known)
+	public Effects effects(Obj m) {
+		return effects.get(m.id);
+	}
+
+	// Forget what method m may write and its inlinable code, before it is
+	// parsed again, so that its recursive calls do not use the old ones;
+	// returns the old effects
+	public Effects forgetEffects(Obj m) {
+		inlinable.remove(m.id);
+		return effects.remove(m.id);
+	}
+
+	// Start the code of a while loop; returns the effects of the enclosing
+	// code, which closeLoop needs
+	public Effects openLoop() {
+		Effects outer = calls;
+		calls = new Effects();
+		return outer;
+	}
+
+	// The code of a while loop in method m is complete; it is entered at start
+	// (-1 if the loop was discarded) after the code from guard to start, which
+	// tests its condition. Move its invariant loads before it.
+	public void closeLoop(Effects outer, Obj m, int guard, int start) {
+		if (comp.optimize && start >= 0 && pc <= maxSize) LoopInvariants.hoist(this, m, guard, start, calls);
+		outer.add(calls);
+		calls = outer;
+	}
+
+	// Was the code of method m inlined somewhere?
+	public boolean wasInlined(Obj m) {
+		return inlined.contains(m.id);
+	}
+
+	// Was method m called somewhere?
+	public boolean wasCalled(Obj m) {
+		return called.contains(m.id);
+	}
+
+	// Can method m be inlined?
+	public boolean canInline(Obj m) {
+		return inlinable.containsKey(m.id);
+	}
+
+	// Append the code b that was generated at address from. The targets of
+	// jumps and calls to addresses >= from are moved by the same distance.
+	public void relocate(byte[] b, int from) {
+		int dist = pc - from;
+		for (int i = 0; i < b.length; i += size(b[i] & 0xff)) {
+			int op = b[i] & 0xff;
+			if (op >= jmp && op <= call && i + 2 < b.length) { // jmp, jeq..jge, call
+				int adr = (b[i+1] << 8) | (b[i+2] & 0xff);
+				if (adr >= from) {
+					adr += dist;
+					b[i+1] = (byte)(adr >> 8); b[i+2] = (byte)adr;
+				}
+			}
+		}
+		put(b);
+	}
+
 	//------------------------------------
 
 	// initialize code buffer
-	public static void init() {
-		buf = new byte[bufSize];
+	public void init() {
+		segs = new byte[4][];
+		seg = null;
 		pc = 0; mainPc = -1;
+		inlinable = new java.util.HashMap<>();
+		inlined = new java.util.HashSet<>();
+		called = new java.util.HashSet<>();
+		effects = new java.util.HashMap<>();
+		calls = new Effects();
 	}
 
-	// Write the code buffer to the output stream
-	public static void write(OutputStream s) {
-		int codeSize;
+	// Write the code buffer to the output stream. The peephole optimizer works on
+	// a copy, so the buffer and its addresses stay valid (see IncrementalCompilation).
+	// Code that the peephole optimizer did not change is written segment by segment.
+	public void write(OutputStream s) {
+		int codeSize = Math.min(pc, maxSize), start = mainPc;
+		byte[] b = null;	// the optimized code, if any
+		if (comp.optimize && pc <= maxSize) {
+			Peephole p = new Peephole(toArray(codeSize), codeSize);
+			if (p.run(mainPc)) {
+				start = p.address(mainPc);
+				b = p.code(); codeSize = b.length;
+			}
+		}
 		try {
-			codeSize = pc;
-			Decoder.decode(buf, 0, codeSize);
-			put('M'); put('J');
-			put4(codeSize);
-			put4(dataSize);
-			put4(mainPc);
-			s.write(buf, codeSize, pc - codeSize);	// header
-			s.write(buf, 0, codeSize);				// code
+			if (comp.diag.code) Decoder.decode(b != null ? b : toArray(codeSize), 0, codeSize, comp.diag.out);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s, 14));
+			out.write('M'); out.write('J');	// header
+			out.writeInt(codeSize);
+			out.writeInt(dataSize);
+			out.writeInt(start);
+			out.flush();
+			if (b != null) s.write(b, 0, codeSize);
+			else for (int n = 0; n * segSize < codeSize; n++)
+				s.write(segs[n], 0, Math.min(segSize, codeSize - n * segSize));
 			s.close();
 		} catch(IOException e) {
-			Parser.error("cannot write code file");
+			comp.parser.error("cannot write code file");
 		}
 	}
 }
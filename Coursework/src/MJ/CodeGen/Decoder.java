@@ -3,6 +3,8 @@
 */
 package MJ.CodeGen;
 
+import java.io.PrintWriter;
+
 public class Decoder {
 
 	private static final int  // instruction codes
@@ -59,31 +61,45 @@ public class Decoder {
 		print       = 51,
 		bread       = 52,
 		bprint      = 53,
-		trap		    = 54;
+		trap		    = 54,
+		dup         = 55,
+		dup2        = 56;
 
-	private static byte[] code;		// code buffer
-	private static int cur;			// address of next byte to decode
-	private static int adr;			// address of currently decoded instruction
+	private byte[] code;		// code buffer
+	private int cur;			// address of next byte to decode
+	private int adr;			// address of currently decoded instruction
+	private PrintWriter out;	// receives the decoded instructions
 
-	private static int get() {
+	private int get() {
 		return ((int)code[cur++])<<24>>>24;
 	}
 
-	private static int get2() {
+	private int get2() {
 		return (get()*256 + get())<<16>>16;
 	}
 
-	private static int get4() {
+	private int get4() {
 		return (get2()<<16) + (get2()<<16>>>16);
 	}
 
-	private static void P(String s) {
-		System.out.println(adr+": "+s);
+	private void P(String s) {
+		out.println(adr+": "+s);
 		adr = cur;
 	}
 
 	public static void decode(byte[] c, int off, int len) {
+		PrintWriter out = new PrintWriter(System.out);
+		decode(c, off, len, out);
+		out.flush();
+	}
+
+	public static void decode(byte[] c, int off, int len, PrintWriter out) {
+		new Decoder().run(c, off, len, out);
+	}
+
+	private void run(byte[] c, int off, int len, PrintWriter out) {
 		int op;
+		this.out = out;
 		code = c;
 		cur = off;
 		adr = cur;
@@ -127,6 +143,8 @@ public class Decoder {
 				case bastore:   P("bastore"); break;
 				case arraylength: P("arraylength"); break;
 				case pop:       P("pop"); break;
+				case dup:       P("dup"); break;
+				case dup2:      P("dup2"); break;
 				case jmp:       P("jmp "+get2()); break;
 				case jeq:       P("jeq "+get2()); break;
 				case jne:       P("jne "+get2()); break;
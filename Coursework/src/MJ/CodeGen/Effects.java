@@ -0,0 +1,54 @@
+/* MicroJava Method Effects
+   =======================
+The global variables and fields that some code may write, used to find
+the values that do not change in a loop (see LoopInvariants). Fields are
+identified by their offset only, so a write to a field of one class also
+counts for the fields of other classes at the same offset. Array elements
+and local variables are not recorded. all means that anything may be
+written (e.g. by a recursive call, whose effects are not known yet).
+*/
+package MJ.CodeGen;
+
+import java.util.BitSet;
+
+public class Effects {
+	public final BitSet statics = new BitSet();	// addresses of global variables
+	public final BitSet fields = new BitSet();	// offsets of fields
+	public boolean all;
+
+	// Add the effects e
+	public void add(Effects e) {
+		if (e == null) {all = true; return;}
+		statics.or(e.statics); fields.or(e.fields);
+		all |= e.all;
+	}
+
+	// Add the writes of the code b (without those of the methods it calls)
+	public void add(byte[] b) {
+		for (int i = 0; i < b.length; i += Code.size(b[i] & 0xff)) {
+			int op = b[i] & 0xff;
+			if ((op == Code.putstatic || op == Code.putfield) && i + 2 < b.length) {
+				int a = (b[i+1] & 0xff) << 8 | b[i+2] & 0xff;
+				if (op == Code.putstatic) statics.set(a); else fields.set(a);
+			}
+		}
+	}
+
+	public boolean writesStatic(int adr) {
+		return all || statics.get(adr);
+	}
+
+	public boolean writesField(int off) {
+		return all || fields.get(off);
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof Effects)) return false;
+		Effects e = (Effects)o;
+		return all == e.all && statics.equals(e.statics) && fields.equals(e.fields);
+	}
+
+	public int hashCode() {
+		return statics.hashCode() * 31 + fields.hashCode() + (all ? 1 : 0);
+	}
+}
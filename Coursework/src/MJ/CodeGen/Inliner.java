@@ -0,0 +1,133 @@
+/* MicroJava Method Inliner
+   =======================
+Holds the code of a small leaf method (one without calls, so it is not
+recursive) that is expanded at its call sites instead of being called
+(see Code.inline). At a call site the actual parameters are on the
+expression stack, as for a call, and the caller's frame is extended by the
+slots of the method, starting at slot base:
+- the parameters are stored into the slots base+nPars-1 .. base,
+- the local variables that may be read before they are written are set to
+  0, as enter would do,
+- the code of the method follows with its slots moved by base, each exit
+  becomes a jump to the end of the expanded code and each return is
+  dropped, so a function result stays on the expression stack.
+*/
+package MJ.CodeGen;
+
+public class Inliner {
+	private static final int maxInstr = 16;	// instructions of a method that is inlined
+	private static final int maxPars = 4;		// parameters of a method that is inlined
+
+	public final int nPars, nVars;	// number of parameters and of all local slots
+	private final int start;		// address of the method
+	private int n;			// number of instructions (without enter)
+	private int[] op, arg;	// opcode and operand of each instruction
+	private int[] target;		// jump target (instruction number), or -1
+	private boolean[] clear;	// local slots that must be set to 0 first
+
+	private Inliner(int start, int nPars, int nVars) {
+		this.start = start; this.nPars = nPars; this.nVars = nVars;
+	}
+
+	// The method whose code b (from its enter instruction on) is at address
+	// start, or null if it cannot be inlined
+	public static Inliner of(byte[] b, int start) {
+		if (b.length < 3 || (b[0] & 0xff) != Code.enter) return null;
+		Inliner m = new Inliner(start, b[1] & 0xff, b[2] & 0xff);
+		if (m.nPars > maxPars || m.nPars > m.nVars || !m.decode(b)) return null;
+		return m;
+	}
+
+	// Local slot of a load or store instruction, or -1
+	private static int slot(int o, int a) {
+		if (o == Code.load || o == Code.store) return a;
+		if (o >= Code.load0 && o <= Code.load3) return o - Code.load0;
+		if (o >= Code.store0 && o <= Code.store3) return o - Code.store0;
+		return -1;
+	}
+
+	private boolean decode(byte[] b) {
+		int len = b.length;
+		op = new int[len]; arg = new int[len]; target = new int[len];
+		int[] index = new int[len + 1];
+		java.util.Arrays.fill(index, -1);
+		int size = 0;	// instructions that are not exit, return or trap
+		for (int p = 3; p < len; n++) {
+			int o = b[p] & 0xff;
+			if (o < Code.load || o > Code.dup2 || o == Code.call || o == Code.enter
+					|| p + Code.size(o) > len) return false;
+			int a = 0;
+			for (int k = 1; k < Code.size(o); k++) a = a << 8 | b[p + k] & 0xff;
+			if (o != Code.exit && o != Code.return_ && o != Code.trap && ++size > maxInstr) return false;
+			index[p] = n;
+			op[n] = o; arg[n] = a;
+			p += Code.size(o);
+		}
+		index[len] = n;
+		clear = new boolean[nVars];
+		boolean jumps = false;
+		for (int i = 0; i < n; i++) {
+			int o = op[i];
+			target[i] = -1;
+			if (o >= Code.jmp && o <= Code.jge) {
+				int t = arg[i] - start;
+				if (t < 3 || t > len || index[t] < 0) return false;
+				target[i] = index[t];
+				jumps = true;
+			} else if (o == Code.exit && (i + 1 == n || op[i + 1] != Code.return_)
+					|| o == Code.return_ && (i == 0 || op[i - 1] != Code.exit)) return false;
+			int s = slot(o, arg[i]);
+			if (s >= nVars) return false;
+			// without jumps the code runs in order, so a slot is read before it
+			// is written if its first use is a load
+			if (s >= nPars && !clear[s] && o < Code.store) {
+				clear[s] = true;
+				for (int j = 0; j < i; j++)
+					if (slot(op[j], arg[j]) == s) clear[s] = false;
+			}
+		}
+		for (int s = nPars; s < nVars; s++) clear[s] |= jumps;
+		return true;
+	}
+
+	private static int loadStore(int o, int s) {
+		boolean st = o >= Code.store;
+		return s <= 3 ? (st ? Code.store0 : Code.load0) + s : st ? Code.store : Code.load;
+	}
+
+	// Generate the code of the method at code.pc, with the slots moved by base
+	public void expand(Code code, int base) {
+		for (int s = nPars - 1; s >= 0; s--) storeTo(code, base + s);
+		for (int s = nPars; s < nVars; s++)
+			if (clear[s]) {code.put(Code.const0); storeTo(code, base + s);}
+		int[] o = new int[n], a = new int[n];
+		int[] adr = new int[n + 1];
+		int p = code.pc;
+		for (int i = 0; i < n; i++) {
+			adr[i] = p;
+			o[i] = op[i]; a[i] = arg[i];
+			int s = slot(op[i], arg[i]);
+			if (s >= 0) {
+				o[i] = loadStore(op[i], base + s);
+				a[i] = base + s;
+			} else if (op[i] == Code.exit) o[i] = Code.jmp;
+			if (o[i] != Code.return_) p += Code.size(o[i]);
+		}
+		adr[n] = p;
+		for (int i = 0; i < n; i++) {
+			if (o[i] == Code.return_) continue;
+			int x = op[i] == Code.exit ? adr[n] : target[i] >= 0 ? adr[target[i]] : a[i];
+			code.put(o[i]);
+			switch (Code.size(o[i])) {
+				case 2: code.put(x); break;
+				case 3: code.put2(x); break;
+				case 5: code.put4(x); break;
+			}
+		}
+	}
+
+	private static void storeTo(Code code, int s) {
+		code.put(loadStore(Code.store, s));
+		if (s > 3) code.put(s);
+	}
+}
@@ -0,0 +1,220 @@
+/* MicroJava Loop-Invariant Code Motion
+   ====================================
+When the code of a while loop is complete (see Code.closeLoop), the loads
+in it whose value does not change in the loop are moved before it. Such a
+load is a local or global variable followed by one or more getfield (e.g.
+val.pos) and possibly an arraylength (len(val.pos)), where
+- the variable is not written in the loop,
+- no field with the offset of one of the getfields is written in the loop,
+- the methods called in the loop do not write the variable or fields
+  either (see Effects).
+Each such load is computed once in front of the loop, stored into a new
+local slot, and replaced in the loop by a load of that slot. Loads are
+only moved while the frame has room for a new slot (see Code.maxLocals).
+
+A load that is moved must not trap where the loop would not. getfield
+and arraylength trap if their object is null, so a load is only moved if
+the loop dereferences its objects anyway before it does anything else
+that can be observed or can trap with another message: the loop runs
+from its start to the first jump, call, input, output or instruction that
+may fail for another reason (e.g. aload or div). Then a null object makes
+the loop trap in the same way before it has printed anything. The loop is
+only entered after its condition was tested once before it (the guard),
+so the objects that the guard dereferences before its first jump are
+known not to be null either (e.g. in while (i < len(a))).
+*/
+package MJ.CodeGen;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import MJ.SymTab.*;
+
+public class LoopInvariants {
+	private final Code code;
+	private final int start, end;	// code of the loop; it is entered at start
+	private final int guard;	// code of the guard: guard..start-1
+	private final Effects calls;	// what the methods called in the loop may write
+	private byte[] b;			// the code of the loop
+	private int n;			// number of instructions
+	private int first;		// the first instruction of the loop; those before are the guard
+	private int[] pos;		// address of each instruction (relative to guard)
+	private int[] op, arg;	// opcode and operand of each instruction
+	private int[] target;		// jump target (instruction number), or -1
+	private boolean[] jumpedTo;	// instructions that are jump targets
+	private Effects writes = new Effects();	// globals and fields written in the loop
+	private boolean[] stored = new boolean[256];	// local slots written in the loop
+
+	private LoopInvariants(Code code, int guard, int start, Effects calls) {
+		this.code = code; this.guard = guard; this.start = start; this.end = code.pc; this.calls = calls;
+	}
+
+	// Move the invariant loads of the loop that starts at start in method m;
+	// the code from guard to start is executed before the loop is entered
+	public static void hoist(Code code, Obj m, int guard, int start, Effects calls) {
+		new LoopInvariants(code, guard, start, calls).run(m);
+	}
+
+	//---------- decoding
+
+	// Local slot of a load or store instruction, or -1
+	private static int slot(int o, int a) {
+		if (o == Code.load || o == Code.store) return a;
+		if (o >= Code.load0 && o <= Code.load3) return o - Code.load0;
+		if (o >= Code.store0 && o <= Code.store3) return o - Code.store0;
+		return -1;
+	}
+
+	private boolean decode() {
+		int len = end - guard;
+		b = code.copy(guard, end);
+		pos = new int[len + 1]; op = new int[len]; arg = new int[len]; target = new int[len];
+		int[] index = new int[len + 1];
+		Arrays.fill(index, -1);
+		for (int p = 0; p < len; n++) {
+			int o = b[p] & 0xff;
+			if (o < Code.load || o > Code.dup2 || o == Code.enter || p + Code.size(o) > len) return false;
+			int a = 0;
+			for (int k = 1; k < Code.size(o); k++) a = a << 8 | b[p + k] & 0xff;
+			index[p] = n; pos[n] = p;
+			if (p == start - guard) first = n;
+			op[n] = o; arg[n] = a;
+			p += Code.size(o);
+		}
+		pos[n] = len; index[len] = n;
+		jumpedTo = new boolean[n + 1];
+		if (index[start - guard] < 0) return false;
+		Arrays.fill(target, -1);
+		for (int i = first; i < n; i++) {
+			int o = op[i];
+			if (o >= Code.jmp && o <= Code.jge) {
+				int t = arg[i] - guard;
+				if (t < pos[first] || t > len || index[t] < 0) return false;	// jumps stay in the loop
+				target[i] = index[t];
+				jumpedTo[target[i]] = true;
+			}
+			if (o == Code.putstatic) writes.statics.set(arg[i]);
+			else if (o == Code.putfield) writes.fields.set(arg[i]);
+			else if (o >= Code.store && o <= Code.store3) stored[slot(o, arg[i])] = true;
+		}
+		return true;
+	}
+
+	//---------- analysis
+
+	// Does instruction i load a variable that is not written in the loop?
+	private boolean invariantRoot(int i) {
+		int o = op[i], s = slot(o, arg[i]);
+		if (s >= 0) return o < Code.store && !stored[s];
+		return o == Code.getstatic && !writes.writesStatic(arg[i]) && !calls.writesStatic(arg[i]);
+	}
+
+	// Is instruction i a getfield of a field that is not written in the loop?
+	private boolean invariantField(int i) {
+		return op[i] == Code.getfield && !writes.writesField(arg[i]) && !calls.writesField(arg[i]);
+	}
+
+	// The code of the instructions i..k-1
+	private String key(int i, int k) {
+		return new String(b, pos[i], pos[k] - pos[i], java.nio.charset.StandardCharsets.ISO_8859_1);
+	}
+
+	// The start (>= lo) of the invariant load whose value instruction k
+	// dereferences, or -1
+	private int base(int lo, int k) {
+		int j = k - 1;
+		while (j >= lo && !jumpedTo[j + 1] && invariantField(j)) j--;
+		return j >= lo && !jumpedTo[j + 1] && invariantRoot(j) ? j : -1;
+	}
+
+	// The invariant loads whose objects the code from instruction lo to hi-1
+	// dereferences before anything else can be observed; adds them to set
+	private void dereferenced(int lo, int hi, Set<String> set) {
+		for (int i = lo; i < hi && (i == lo || !jumpedTo[i]); i++) {
+			switch (op[i]) {
+				case Code.getfield: case Code.arraylength:
+					int j = base(lo, i);
+					if (j >= 0) set.add(key(j, i));
+					break;
+				case Code.div: case Code.rem: case Code.aload: case Code.astore:
+				case Code.baload: case Code.bastore: case Code.new_: case Code.newarray:
+				case Code.call: case Code.return_: case Code.exit: case Code.trap:
+				case Code.read: case Code.print: case Code.bread: case Code.bprint:
+					return;
+				default:
+					if (op[i] >= Code.jmp && op[i] <= Code.jge) return;
+			}
+		}
+	}
+
+	//---------- code motion
+
+	private static void loadStore(ByteArrayOutputStream out, int ld, int s) {
+		if (s <= 3) out.write(ld + 1 + s);	// load0..3, store0..3
+		else {out.write(ld); out.write(s);}
+	}
+
+	private void run(Obj m) {
+		if (!decode()) return;
+		Set<String> safe = new HashSet<>();
+		dereferenced(0, first, safe);
+		dereferenced(first, n, safe);
+		if (safe.isEmpty()) return;
+		int base = code.get(m.adr + 2) & 0xff;	// lsize of enter: the first new slot
+		Map<String, Integer> slots = new LinkedHashMap<>();	// moved loads and their slots
+		int[] moved = new int[n];		// slot that replaces the load starting at i, or -1
+		int[] length = new int[n];	// number of instructions of that load
+		Arrays.fill(moved, -1);
+		for (int i = first; i < n; i++) {
+			if (!invariantRoot(i)) continue;
+			int k = i + 1;	// the longest load i..k-1 whose objects are dereferenced anyway
+			while (k < n && !jumpedTo[k] && (invariantField(k) || op[k] == Code.arraylength)
+					&& safe.contains(key(i, k))) {
+				k++;
+				if (op[k - 1] == Code.arraylength) break;
+			}
+			if (k - i < 2) continue;
+			String key = key(i, k);
+			Integer s = slots.get(key);
+			if (s == null) {
+				if (base + slots.size() >= Code.maxLocals) continue;
+				s = base + slots.size();
+				slots.put(key, s);
+			}
+			moved[i] = s; length[i] = k - i;
+			i = k - 1;
+		}
+		if (slots.isEmpty()) return;
+		// the moved loads, then the loop with the loads replaced
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (Map.Entry<String, Integer> e : slots.entrySet()) {
+			for (char c : e.getKey().toCharArray()) out.write(c);
+			loadStore(out, Code.store, e.getValue());
+		}
+		int[] adr = new int[n + 1];
+		int p = out.size();
+		for (int i = first; i < n; ) {
+			adr[i] = start + p;
+			if (moved[i] >= 0) {
+				p += moved[i] <= 3 ? 1 : 2;
+				for (int k = 1; k < length[i]; k++) adr[i + k] = start + p;
+				i += length[i];
+			} else p += Code.size(op[i++]);
+		}
+		adr[n] = start + p;
+		if (start + p > Code.maxSize) return;
+		for (int i = first; i < n; ) {
+			if (moved[i] >= 0) {
+				loadStore(out, Code.load, moved[i]);
+				i += length[i];
+				continue;
+			}
+			int a = target[i] >= 0 ? adr[target[i]] : arg[i];
+			out.write(op[i]);
+			for (int k = Code.size(op[i]) - 1; k > 0; k--) out.write(a >> 8 * (k - 1));
+			i++;
+		}
+		code.truncate(start);
+		code.put(out.toByteArray());
+		code.put2(m.adr + 1, m.nPars << 8 | base + slots.size());
+	}
+}
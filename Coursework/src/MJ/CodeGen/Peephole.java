@@ -0,0 +1,197 @@
+/* MicroJava Peephole Optimizer
+   ===========================
+Improves the code of a program before it is written (see Code.write) by
+rewriting short instruction sequences:
+- store n; load n          -> dup; store n   (also putstatic a; getstatic a)
+- const0; add | const0; sub | const1; mul | const1; div  -> nothing
+- a jump to a jmp          -> a jump to the target of the jmp
+- jmp to the next instruction -> nothing
+- jcc L; jmp M; L:         -> jncc M
+- code after jmp, return or trap that no jump or call reaches -> nothing
+A sequence is only rewritten if no jump leads into it after its first
+instruction. The code is decoded into instructions whose jump and call
+targets are instruction numbers; removed instructions stay in place marked
+as dead, and a target that is removed moves to the next live instruction.
+The addresses are computed again when the code is encoded, so all jumps,
+calls and the start address are relocated.
+*/
+package MJ.CodeGen;
+
+public class Peephole {
+	private static int[] inverse = {Code.jne, Code.jeq, Code.jge, Code.jgt, Code.jle, Code.jlt};
+
+	private final byte[] code;	// the code to improve
+	private final int len;
+	private int n;			// number of instructions
+	private int[] op;			// opcode of each instruction
+	private int[] arg;		// operand bytes of each instruction as a big-endian number
+	private int[] target;		// jump or call target (instruction number), or -1
+	private int[] refs;		// number of jumps and calls to each live instruction
+	private boolean[] live;	// instruction not removed
+	private int[] index;		// instruction number of each address, or -1
+	private int[] adr;		// new address of each instruction (after encode)
+	private byte[] out;		// the encoded code
+
+	public Peephole(byte[] code, int len) {
+		this.code = code; this.len = len;
+	}
+
+	//---------- decoding and encoding
+
+	// Decode the code; false if it is not well-formed (e.g. after errors)
+	private boolean decode() {
+		op = new int[len]; arg = new int[len]; target = new int[len];
+		index = new int[len + 1];
+		java.util.Arrays.fill(index, -1);
+		for (int p = 0; p < len; n++) {
+			int o = code[p] & 0xff;
+			if (o < Code.load || o > Code.dup2) return false;
+			int size = Code.size(o);
+			if (p + size > len) return false;
+			int a = 0;
+			for (int k = 1; k < size; k++) a = a << 8 | code[p + k] & 0xff;
+			index[p] = n;
+			op[n] = o; arg[n] = a; target[n] = -1;
+			p += size;
+		}
+		index[len] = n;
+		refs = new int[n + 1];
+		live = new boolean[n + 1];
+		java.util.Arrays.fill(live, 0, n, true);
+		for (int i = 0; i < n; i++) {
+			if (op[i] >= Code.jmp && op[i] <= Code.call) {
+				if (arg[i] >= len || index[arg[i]] < 0) return false;
+				target[i] = index[arg[i]];
+				refs[target[i]]++;
+			}
+		}
+		return true;
+	}
+
+	private byte[] encode() {
+		adr = new int[n + 1];
+		int p = 0;
+		for (int i = 0; i <= n; i++) {
+			adr[i] = p;	// a removed instruction gets the address of the next live one
+			if (live[i]) p += Code.size(op[i]);
+		}
+		byte[] b = new byte[p];
+		p = 0;
+		for (int i = 0; i < n; i++) {
+			if (!live[i]) continue;
+			int size = Code.size(op[i]);
+			int a = target[i] >= 0 ? adr[target[i]] : arg[i];
+			b[p] = (byte)op[i];
+			for (int k = size - 1; k > 0; k--, a >>= 8) b[p + k] = (byte)a;
+			p += size;
+		}
+		return b;
+	}
+
+	//---------- instruction list
+
+	// The first live instruction at or after i (n if there is none)
+	private int resolve(int i) {
+		while (i < n && !live[i]) i++;
+		return i;
+	}
+
+	private int next(int i) {
+		return resolve(i + 1);
+	}
+
+	private void retarget(int i, int t) {
+		refs[resolve(target[i])]--;
+		target[i] = t;
+		refs[t]++;
+	}
+
+	// Remove instruction i; jumps to it go to the next live instruction
+	private void remove(int i) {
+		if (target[i] >= 0) refs[resolve(target[i])]--;
+		live[i] = false;
+		refs[next(i)] += refs[i];
+		refs[i] = 0;
+	}
+
+	// Local variable slot of a load or store instruction, or -1
+	private int slot(int i, int ld) {
+		int o = op[i];
+		if (o == ld) return arg[i];
+		if (o >= ld + 1 && o <= ld + 4) return o - ld - 1;	// load0..3, store0..3
+		return -1;
+	}
+
+	private boolean isJump(int o) {
+		return o >= Code.jmp && o <= Code.jge;
+	}
+
+	//---------- optimization
+
+	// Apply the rewrite rules once to every instruction; true if something changed
+	private boolean pass(int main) {
+		boolean changed = false;
+		for (int i = 0; i < n; i++) {
+			if (!live[i]) continue;
+			int o = op[i];
+			int j = next(i);
+			boolean last = j == n;
+			// a jump to a jmp goes to its target
+			if (isJump(o)) {
+				int t = resolve(target[i]);
+				for (int hops = 0; t < n && op[t] == Code.jmp && hops < n; hops++) t = resolve(target[t]);
+				if (t != resolve(target[i]) && t < n) {retarget(i, t); changed = true;}
+				target[i] = resolve(target[i]);
+			}
+			if (last) break;
+			if (o == Code.jmp && target[i] == j && j < n) { // jmp to the next instruction
+				remove(i); changed = true;
+			} else if (isJump(o) && o != Code.jmp && op[j] == Code.jmp && refs[j] == 0
+					&& target[i] == next(j) && next(j) < n) { // jcc L; jmp M; L:
+				op[i] = inverse[o - Code.jeq];
+				retarget(i, resolve(target[j]));
+				remove(j); changed = true;
+			} else if (o == Code.jmp || o == Code.return_ || o == Code.trap) { // unreachable code
+				while (j < n && refs[j] == 0 && op[j] != Code.enter && j != main) {
+					remove(j); changed = true;
+					j = next(j);
+				}
+			} else if (refs[j] == 0) {
+				int s = slot(i, Code.store);
+				if (s >= 0 && slot(j, Code.load) == s
+						|| o == Code.putstatic && op[j] == Code.getstatic && arg[j] == arg[i]) {
+					// store n; load n -> dup; store n
+					op[j] = o; arg[j] = arg[i];
+					op[i] = Code.dup; arg[i] = 0;
+					changed = true;
+				} else if (o == Code.const0 && (op[j] == Code.add || op[j] == Code.sub)
+						|| o == Code.const1 && (op[j] == Code.mul || op[j] == Code.div)) {
+					if (next(j) < n) {remove(i); remove(j); changed = true;}
+				}
+			}
+		}
+		return changed;
+	}
+
+	// Optimize the code; false if it could not be decoded
+	public boolean run(int mainPc) {
+		if (!decode()) return false;
+		int main = mainPc >= 0 && mainPc < len ? index[mainPc] : -1;
+		if (main >= 0) refs[main]++;	// the start is a jump target
+		while (pass(main)) ;
+		return true;
+	}
+
+	// The optimized code
+	public byte[] code() {
+		if (out == null) out = encode();
+		return out;
+	}
+
+	// The new address of the instruction at the old address a
+	public int address(int a) {
+		if (a < 0 || a > len || index[a] < 0) return a;
+		code();
+		return adr[index[a]];
+	}
+}
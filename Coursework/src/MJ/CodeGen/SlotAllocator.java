@@ -0,0 +1,197 @@
+/* MicroJava Local Slot Allocator
+   =============================
+Tab gives the local variables of a method their slots (adr) in declaration
+order, but only the slots 0..3 have the short forms load0..3 and store0..3.
+When the code of a method is complete, its local variables (not its
+parameters, whose slots are fixed by enter) get new slots:
+- Every load and store of a variable counts 1, or 8 for each loop it is
+  in (a loop is the range between a backward jump and its target).
+- Liveness analysis over the instructions of the method finds the
+  variables that interfere: a variable interferes with the variables that
+  are live where it is stored. enter sets all slots to 0, so a variable
+  that is read before it is written is live from the start.
+- The variables get slots in the order of their counts, each the lowest
+  slot that no interfering variable has got yet. So the most used
+  variables get the short forms, and variables that are never live at the
+  same time share a slot, which makes the frame smaller. As every slot is
+  below the old lsize of enter, the frame never grows beyond
+  Code.maxLocals.
+The slots that inlined methods added to the frame (see Inliner) take part
+like local variables. The code of the method is then encoded again with
+the new slots and its jumps are relocated.
+*/
+package MJ.CodeGen;
+
+import MJ.SymTab.*;
+
+public class SlotAllocator {
+	private static final int maxWeight = 1 << 12;	// weight of a use in 4 or more nested loops
+
+	private final Code code;
+	private final int start, end;	// code of the method
+	private final int nPars, nVars;	// number of parameters and of all local slots
+	private byte[] b;			// the code of the method
+	private int n;			// number of instructions
+	private int[] pos;		// address of each instruction (relative to start)
+	private int[] op, arg;	// opcode and operand of each instruction
+	private int[] target;		// jump target (instruction number), or -1
+	private int[] index;		// instruction number of each address, or -1
+
+	private SlotAllocator(Code code, int start, int nPars, int nVars) {
+		this.code = code; this.start = start; this.end = code.pc;
+		this.nPars = nPars; this.nVars = nVars;
+	}
+
+	// Give the local variables of method m, whose code starts at start, new slots
+	public static void allocate(Code code, Obj m, int start) {
+		if (code.pc > Code.maxSize) return;
+		int nVars = code.get(start + 2) & 0xff;	// lsize of enter, with the slots of inlined methods
+		if (nVars <= m.nPars) return;
+		new SlotAllocator(code, start, m.nPars, nVars).run(m);
+	}
+
+	//---------- decoding
+
+	// Local slot of a load or store instruction, or -1
+	private static int slot(int o, int a) {
+		if (o == Code.load || o == Code.store) return a;
+		if (o >= Code.load0 && o <= Code.load3) return o - Code.load0;
+		if (o >= Code.store0 && o <= Code.store3) return o - Code.store0;
+		return -1;
+	}
+
+	private static boolean isStore(int o) {
+		return o >= Code.store && o <= Code.store3;
+	}
+
+	private boolean decode() {
+		int len = end - start;
+		b = code.copy(start, end);
+		pos = new int[len + 1]; op = new int[len]; arg = new int[len]; target = new int[len];
+		index = new int[len + 1];
+		java.util.Arrays.fill(index, -1);
+		for (int p = 0; p < len; n++) {
+			int o = b[p] & 0xff;
+			if (o < Code.load || o > Code.dup2 || p + Code.size(o) > len) return false;
+			int a = 0;
+			for (int k = 1; k < Code.size(o); k++) a = a << 8 | b[p + k] & 0xff;
+			index[p] = n; pos[n] = p;
+			op[n] = o; arg[n] = a;
+			p += Code.size(o);
+		}
+		pos[n] = len; index[len] = n;
+		for (int i = 0; i < n; i++) {
+			target[i] = -1;
+			if (op[i] >= Code.jmp && op[i] <= Code.jge) {
+				int t = arg[i] - start;
+				if (t < 0 || t > len || index[t] < 0) return false;	// jumps stay in the method
+				target[i] = index[t];
+			}
+		}
+		return true;
+	}
+
+	//---------- allocation
+
+	private void run(Obj m) {
+		if (!decode()) return;
+		int nLoc = nVars - nPars;	// variable v has the old slot nPars + v
+		int words = (nLoc + 63) >>> 6;
+
+		// use counts, weighted by loop nesting
+		int[] depth = new int[n + 1];
+		for (int i = 0; i < n; i++)
+			if (target[i] >= 0 && target[i] <= i) { depth[target[i]]++; depth[i + 1]--; }
+		long[] count = new long[nLoc];
+		for (int i = 0, d = 0; i < n; i++) {
+			d += depth[i];
+			int s = slot(op[i], arg[i]);
+			if (s >= nPars && s < nVars) count[s - nPars] += Math.min(1 << Math.min(3 * d, 30), maxWeight);
+		}
+
+		// liveness: live[i] = variables live before instruction i
+		long[][] live = new long[n + 1][words];
+		for (boolean changed = true; changed; ) {
+			changed = false;
+			for (int i = n - 1; i >= 0; i--) {
+				long[] in = live[i];
+				int o = op[i];
+				int s = slot(o, arg[i]) - nPars;
+				boolean local = s >= 0 && s < nLoc;
+				for (int w = 0; w < words; w++) {
+					long x = 0;
+					if (o != Code.jmp && o != Code.return_ && o != Code.trap) x = live[i + 1][w];
+					if (target[i] >= 0) x |= live[target[i]][w];
+					if (local && (s >>> 6) == w) {
+						if (isStore(o)) x &= ~(1L << s); else x |= 1L << s;
+					}
+					if (x != in[w]) {in[w] = x; changed = true;}
+				}
+			}
+		}
+
+		// interference: a stored variable interferes with the variables live after the store
+		long[][] inter = new long[nLoc][words];
+		for (int i = 0; i < n; i++) {
+			int s = slot(op[i], arg[i]) - nPars;
+			if (!isStore(op[i]) || s < 0 || s >= nLoc) continue;
+			for (int w = 0; w < words; w++) {
+				long x = live[i + 1][w];
+				if (target[i] >= 0) x |= live[target[i]][w];
+				inter[s][w] |= x;
+				for (long y = x; y != 0; y &= y - 1) {
+					int v = (w << 6) + Long.numberOfTrailingZeros(y);
+					inter[v][s >>> 6] |= 1L << s;
+				}
+			}
+		}
+
+		// slots in the order of the counts; unused variables get none
+		Integer[] order = new Integer[nLoc];
+		for (int v = 0; v < nLoc; v++) order[v] = v;
+		java.util.Arrays.sort(order, (x, y) -> Long.compare(count[y], count[x]));
+		int[] slot = new int[nLoc];
+		int size = nPars;
+		for (int v : order) {
+			if (count[v] == 0) {slot[v] = -1; continue;}
+			boolean[] taken = new boolean[nVars];
+			for (int u = 0; u < nLoc; u++)
+				if (slot[u] > 0 && u != v && (inter[v][u >>> 6] >>> u & 1) != 0) taken[slot[u] - 1] = true;
+			int s = nPars;
+			while (taken[s]) s++;
+			slot[v] = s + 1;	// + 1, so that 0 means "no slot yet"
+			size = Math.max(size, s + 1);
+		}
+		for (int v = 0; v < nLoc; v++) slot[v] = slot[v] > 0 ? slot[v] - 1 : -1;
+
+		// encode the method again
+		int[] adr = new int[n + 1];
+		int p = 0;
+		for (int i = 0; i < n; i++) {
+			adr[i] = p;
+			int o = op[i], s = slot(o, arg[i]);
+			if (s >= nPars && s < nVars) {
+				s = slot[s - nPars];
+				boolean st = isStore(o);
+				if (s <= 3) op[i] = (st ? Code.store0 : Code.load0) + s;
+				else {op[i] = st ? Code.store : Code.load; arg[i] = s;}
+			} else if (o == Code.enter) arg[i] = (arg[i] & 0xff00) | size;
+			p += Code.size(op[i]);
+		}
+		adr[n] = p;
+		byte[] out = new byte[p];	// may be longer than before if a variable leaves slots 0..3
+		for (int i = 0; i < n; i++) {
+			int size1 = Code.size(op[i]);
+			int a = target[i] >= 0 ? start + adr[target[i]] : arg[i];
+			out[adr[i]] = (byte)op[i];
+			for (int k = size1 - 1; k > 0; k--, a >>= 8) out[adr[i] + k] = (byte)a;
+		}
+		code.truncate(start);
+		code.put(out);
+
+		// the variables' new addresses
+		int v = -nPars;
+		for (Obj x = m.locals; x != null; x = x.next, v++)
+			if (v >= 0 && slot[v] >= 0) x.adr = slot[v];
+	}
+}
@@ -0,0 +1,66 @@
+/* MicroJava Compilation Context
+   ============================
+Holds the scanner, parser, symbol table and code buffer of one compilation.
+All compiler state lives in these objects, so several compilations can run
+concurrently on different threads.
+*/
+package MJ;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import MJ.SymTab.*;
+import MJ.CodeGen.*;
+
+public class Compilation {
+	public final Diagnostics diag;	// receives trace output and errors
+	public final Names   names;		// identifiers of this compilation
+	public final Scanner scanner;
+	public final Tab     tab;
+	public final Code    code;
+	public final Parser  parser;
+	public boolean pipelined;	// scan on a separate thread ahead of the parser
+	public boolean parallel;	// scan large sources in chunks on several threads
+	public boolean optimize = true;	// allocate local slots by use and run the peephole optimizer
+
+	public Compilation(Diagnostics diag) {
+		this.diag = diag;
+		names = new Names();
+		scanner = new Scanner(names, diag);
+		tab = new Tab(this);
+		code = new Code(this);
+		parser = new Parser(this);
+	}
+
+	// Compilation that prints all diagnostic output to System.out
+	public Compilation() {
+		this(new Diagnostics(Diagnostics.ALL, System.out));
+	}
+
+	// Compile the source file fileName and return the number of errors
+	public int compile(String fileName) throws IOException {
+		try (FileChannel fc = FileChannel.open(Paths.get(fileName))) {
+			return compile(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+		}
+	}
+
+	// Compile the source text in src and return the number of errors
+	public int compile(ByteBuffer src) {
+		TokenSource tokens;
+		if (parallel) tokens = new ParallelScanner(src, names, diag);
+		else {
+			scanner.init(src);
+			tokens = pipelined ? new TokenPipe(scanner) : scanner;
+		}
+		parser.parse(tokens);
+		diag.flush();
+		return parser.errors;
+	}
+
+	// Write the object file of a successful compilation
+	public void write(OutputStream s) {
+		code.write(s);
+		diag.flush();
+	}
+}
@@ -8,22 +8,46 @@ import MJ.CodeGen.*;
 
 public class Compiler {
 
-	private static String objFileName(String s) {
+	static String objFileName(String s) {
 		int i = s.lastIndexOf('.');
 		if (i < 0) return s + ".obj"; else return s.substring(0, i) + ".obj";
 	}
 
 	// Main procedure of MicroJava compiler
 	public static void main(String args[]) {
-		if (args.length > 0) {
+		// options -tokens, -symbols, -code and -errors select the diagnostic output
+		// (default: all, or none for several files), -async writes it from a
+		// background thread, -pipelined runs the scanner on its own thread,
+		// -parallel scans large sources in chunks on all cores, -noopt turns
+		// the code optimizations off
+		int levels = 0, n = 0;
+		boolean async = false, pipelined = false, parallel = false, optimize = true;
+		for (String a : args) {
+			if (a.equals("-tokens")) levels |= Diagnostics.TOKENS;
+			else if (a.equals("-symbols")) levels |= Diagnostics.SYMBOLS;
+			else if (a.equals("-code")) levels |= Diagnostics.CODE;
+			else if (a.equals("-errors")) levels |= Diagnostics.ERRORS;
+			else if (a.equals("-async")) async = true;
+			else if (a.equals("-pipelined")) pipelined = true;
+			else if (a.equals("-parallel")) parallel = true;
+			else if (a.equals("-noopt")) optimize = false;
+			else args[n++] = a;
+		}
+		args = java.util.Arrays.copyOf(args, n);
+		if (args.length > 0 && BatchCompiler.isBatch(args)) {
+			// the output of each file is collected and printed by this thread
+			if (async) System.out.println("-- -async cannot be used with several files");
+			else new BatchCompiler(levels, pipelined, parallel, optimize).run(args);
+		} else if (args.length > 0) {
+			if (levels == 0) levels = Diagnostics.ALL;
 			String source = args[0];
 			String output = objFileName(source);
 			try {
-				Scanner.init(new InputStreamReader(new FileInputStream(source)));
-				Parser.parse();
-				if (Parser.errors == 0) {
+				Compilation c = new Compilation(new Diagnostics(levels, System.out, async));
+				c.pipelined = pipelined; c.parallel = parallel; c.optimize = optimize;
+				if (c.compile(source) == 0) {
 					try {
-						Code.write(new FileOutputStream(output));
+						c.write(new FileOutputStream(output));
 					} catch (IOException e) {
 						System.out.println("-- cannot open output file "+output);
 					}
@@ -31,7 +55,9 @@ public class Compiler {
 			} catch (IOException e) {
 				System.out.println("-- cannot open input file " + source);
 			}
-		} else System.out.println("-- synopsis: java MJ.Compiler <inputfileName>");
+		} else System.out.println("-- synopsis: java MJ.Compiler [-tokens] [-symbols] [-code] [-errors] [-async] [-pipelined] [-parallel] [-noopt] <inputfileName>\n"
+			+ "   or: java MJ.Compiler [-tokens] [-symbols] [-code] [-errors] [-pipelined] [-parallel] [-noopt]\n"
+			+ "                        {<inputfileName> | <directory> | <glob> | @<manifest>}");
 	}
 
 }
\ No newline at end of file
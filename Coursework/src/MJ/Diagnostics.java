@@ -0,0 +1,129 @@
+/* MicroJava Diagnostics
+   ====================
+Receives the diagnostic output of a compilation: the token trace, the
+symbol table dump, the disassembled code and the error messages. Each
+level can be switched on separately. Producers test the level's flag
+before they build any text, so switched-off output costs nothing.
+Error messages are always collected (see errors()); they are printed only
+if the ERRORS level is on. Subclasses can override error() to receive
+errors directly.
+*/
+package MJ;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Diagnostics {
+	public static final int  // output levels (can be combined with |)
+		TOKENS  = 1,	// token trace of the parser
+		SYMBOLS = 2,	// symbol table dump
+		CODE    = 4,	// disassembled code
+		ERRORS  = 8,	// error messages
+		ALL     = 15;
+
+	public final boolean tokens, symbols, code, errors;	// switched-on levels
+	public final PrintWriter out;	// output of the switched-on levels (buffered)
+	private final List<String> messages = new ArrayList<String>();
+
+	// Diagnostics that print the given levels to s. If async is set, the output is
+	// written by a background thread.
+	public Diagnostics(int levels, OutputStream s, boolean async) {
+		tokens = (levels & TOKENS) != 0;
+		symbols = (levels & SYMBOLS) != 0;
+		code = (levels & CODE) != 0;
+		errors = (levels & ERRORS) != 0;
+		Writer w = new OutputStreamWriter(s);
+		if (async) w = new AsyncWriter(w);
+		out = new PrintWriter(new BufferedWriter(w, 1 << 16));
+	}
+
+	public Diagnostics(int levels, OutputStream s) {
+		this(levels, s, false);
+	}
+
+	// Diagnostics that print nothing and only collect the error messages
+	public Diagnostics() {
+		this(0, OutputStream.nullOutputStream(), false);
+	}
+
+	// Report an error at the given source position. The scanner may report
+	// from its own thread (see TokenPipe).
+	public synchronized void error(int line, int col, String msg) {
+		String s = "-- line " + line + " col " + col + ": " + msg;
+		messages.add(s);
+		if (errors) out.println(s);
+	}
+
+	// A copy of the error messages reported so far
+	public synchronized List<String> errors() {
+		return new ArrayList<String>(messages);
+	}
+
+	// Write all buffered output
+	public void flush() {
+		out.flush();
+	}
+
+	// Writer that hands its output in chunks to a background thread
+	private static class AsyncWriter extends Writer {
+		private static final char[] FLUSH = new char[0];	// request to flush the target
+		private final Writer target;
+		private final BlockingQueue<char[]> queue = new ArrayBlockingQueue<char[]>(64);
+		private long requested, done;	// flush requests queued and carried out (guarded by this)
+
+		AsyncWriter(Writer target) {
+			this.target = target;
+			Thread t = new Thread(this::drain, "MJ diagnostics");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		private void drain() {
+			for (;;) {
+				char[] c;
+				try {
+					c = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					if (c == FLUSH) target.flush(); else target.write(c);
+				} catch (IOException e) {
+					// output is lost, but flushes must still be acknowledged
+				}
+				if (c == FLUSH) synchronized (this) {done++; notifyAll();}
+			}
+		}
+
+		private void put(char[] c) {
+			try {
+				queue.put(c);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void write(char[] c, int off, int len) {
+			put(Arrays.copyOfRange(c, off, off + len));
+		}
+
+		// Wait until the output written so far is flushed. If the thread is
+		// interrupted, flush returns early with the interrupt flag set.
+		public void flush() {
+			try {
+				queue.put(FLUSH);
+				synchronized (this) {
+					long n = ++requested;
+					while (done < n) wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void close() {
+			flush();
+		}
+	}
+}
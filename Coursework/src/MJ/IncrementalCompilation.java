@@ -0,0 +1,109 @@
+/* MicroJava Incremental Compilation
+   ================================
+Keeps a program compiled while its text is edited (e.g. in an editor). The
+text is scanned by an IncrementalScanner. If the tokens changed by an edit
+lie inside one method, after its parameter list and before its closing
+brace, only this method is parsed, checked and translated again:
+- the program scope of the previous parse is reopened with the objects
+  declared before the method (ConstDecl, ClassDecl, VarDecl and earlier
+  methods), so the global declarations are reused,
+- the method's code is replaced, and the code of the following methods is
+  moved behind it; their jump and call targets are relocated.
+Any other edit, or a method whose new declaration does not end where the
+old one ended, compiles the whole program again.
+
+Errors of a re-parsed method are reported to the Diagnostics again; the
+error count is kept per method, so errors() is the count of the whole
+program.
+*/
+package MJ;
+
+import java.io.OutputStream;
+import java.util.List;
+import MJ.SymTab.*;
+import MJ.CodeGen.*;
+
+public class IncrementalCompilation {
+	public final Compilation comp;
+	public final IncrementalScanner scanner;
+	public int reparsed;	// methods parsed by the last edit, or -1 for the whole program
+
+	public IncrementalCompilation(Diagnostics diag) {
+		comp = new Compilation(diag);
+		comp.parser.incremental = true;
+		scanner = new IncrementalScanner(comp.names, diag);
+	}
+
+	// Compile the text and return the number of errors
+	public int init(String text) {
+		scanner.init(text);
+		return compileAll();
+	}
+
+	private int compileAll() {
+		comp.parser.parse(scanner.tokens(0));
+		reparsed = -1;
+		return comp.parser.errors;
+	}
+
+	// Replace the n bytes at position pos by s and compile again; returns the number of errors
+	public int edit(int pos, int n, String s) {
+		scanner.edit(pos, n, s);
+		Parser parser = comp.parser;
+		Code code = comp.code;
+		List<MethodSpan> methods = parser.methods;
+		int first = scanner.changed, last = first + scanner.removed;	// old tokens first..last-1 changed
+		int delta = scanner.inserted - scanner.removed;
+		// find the method whose body contains the changed tokens
+		int lo = 0, hi = methods.size() - 1;
+		while (lo < hi) {
+			int m = (lo + hi + 1) >>> 1;
+			if (methods.get(m).start <= first) lo = m; else hi = m - 1;
+		}
+		if (methods.isEmpty() || code.pc > Code.maxSize) return compileAll();
+		MethodSpan old = methods.get(lo);
+		if (first < old.body || last > old.end - 1) return compileAll();
+		if (code.wasInlined(old.meth)) return compileAll();	// its old code is in other methods
+		// reopen the program scope as it was before the method
+		byte[] rest = code.copy(old.codeEnd, code.pc);
+		int mainPc = code.mainPc;
+		Obj later = comp.tab.reopenScope(parser.program, old.mark);
+		later = later == null ? null : later.next;	// the methods after old
+		code.truncate(old.codeStart);
+		parser.errors -= old.errors;
+		Effects effects = code.forgetEffects(old.meth);
+		MethodSpan span = parser.parseMethod(scanner.tokens(old.start), old.start, old.errDist);
+		comp.tab.restoreScope(later);
+		comp.tab.closeScope();
+		if (span.end != old.end + delta) return compileAll(); // the declaration changed its extent
+		if (code.canInline(span.meth) && code.wasCalled(old.meth)) return compileAll();	// its calls would now be inlined
+		if (!java.util.Objects.equals(code.effects(span.meth), effects)
+				&& code.wasCalled(old.meth)) return compileAll();	// loops that call it may be optimized differently
+		// errors are suppressed within 3 tokens of an error (see Parser.error)
+		if (Math.min(span.errDistEnd, 3) != Math.min(old.errDistEnd, 3)) return compileAll(); // the declaration changed its extent
+		// move the methods after it
+		int dist = code.pc - old.codeEnd;
+		code.relocate(rest, old.codeEnd);
+		if (!span.meth.name.equals("main")) code.mainPc = mainPc >= old.codeEnd ? mainPc + dist : mainPc;
+		methods.set(lo, span);
+		if (lo + 1 < methods.size()) methods.get(lo + 1).mark = span.meth;
+		for (int i = lo + 1; i < methods.size(); i++) {
+			MethodSpan m = methods.get(i);
+			m.start += delta; m.body += delta; m.end += delta;
+			m.codeStart += dist; m.codeEnd += dist;
+			m.meth.adr += dist;
+		}
+		reparsed = 1;
+		return parser.errors;
+	}
+
+	// Number of errors of the current program text
+	public int errors() {
+		return comp.parser.errors;
+	}
+
+	// Write the object file of the current program
+	public void write(OutputStream s) {
+		comp.write(s);
+	}
+}
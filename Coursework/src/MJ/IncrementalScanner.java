@@ -0,0 +1,290 @@
+/* MicroJava Incremental Scanner
+   ============================
+Keeps the source text and its token stream up to date while the text is
+edited, e.g. in an editor. An edit re-scans only from the last token that
+starts before the edit until a new token starts where an old token of the
+unchanged rest of the text starts; from there on both streams are equal.
+
+The text is kept in a gap buffer and the tokens in parallel arrays with a
+gap, both with the gap at the most recent edit. Tokens behind the gap store
+their offset relative to the end of the text and their line relative to the
+line of the eof token, so an edit shifts all of them by changing length and
+endLine. Only the columns of the tokens on the line where the streams meet
+again are corrected one by one. The cost of an edit therefore depends on
+the size of the edit and its distance from the previous edit, not on the
+size of the text.
+
+Offsets and lengths are in bytes of the UTF-8 text. Lexical errors are
+reported when the text containing them is scanned.
+*/
+package MJ;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import MJ.SymTab.Names;
+
+public class IncrementalScanner {
+	private static final int  // token codes
+		eof = 36;
+	private static final int window = 256;	// bytes scanned beyond an edit at first
+
+	private byte[] text = new byte[1024];
+	private int gap0, gap1;		// text gap text[gap0..gap1[
+	private int length;			// length of the text without the gap
+
+	private int[] kind, line, col, val, off, len;	// tokens, see TokenBuffer
+	private int tg0, tg1;		// token gap [tg0..tg1[
+	private int endLine;		// line of the eof token
+
+	public int changed;			// first token changed by the last edit
+	public int inserted;		// number of tokens inserted at changed by the last edit
+	public int removed;			// number of tokens removed at changed by the last edit
+
+	private final Names names;
+	private final Diagnostics diag;
+	private final Scanner scanner;
+
+	// Errors found while re-scanning; only those before the sync point are reported
+	private final Diagnostics errors = new Diagnostics() {
+		public void error(int line, int col, String msg) {
+			errLine[errCount] = line; errCol[errCount] = col; errMsg[errCount] = msg;
+			if (++errCount == errMsg.length) {
+				errLine = java.util.Arrays.copyOf(errLine, 2 * errCount);
+				errCol = java.util.Arrays.copyOf(errCol, 2 * errCount);
+				errMsg = java.util.Arrays.copyOf(errMsg, 2 * errCount);
+			}
+		}
+	};
+	private int[] errLine = new int[8], errCol = new int[8];
+	private String[] errMsg = new String[8];
+	private int errCount;
+
+	public IncrementalScanner(Names names, Diagnostics diag) {
+		this.names = names; this.diag = diag;
+		scanner = new Scanner(names, errors);
+		newTokens(1024);
+	}
+
+	private void newTokens(int n) {
+		kind = new int[n]; line = new int[n]; col = new int[n];
+		val = new int[n]; off = new int[n]; len = new int[n];
+	}
+
+	//---------- text gap buffer
+
+	// Byte i of the text
+	private int at(int i) {
+		return text[i < gap0 ? i : i + gap1 - gap0];
+	}
+
+	// Move the text gap to position p
+	private void moveGap(int p) {
+		if (p < gap0) {
+			System.arraycopy(text, p, text, gap1 - (gap0 - p), gap0 - p);
+			gap1 -= gap0 - p;
+		} else if (p > gap0) {
+			System.arraycopy(text, gap1, text, gap0, p - gap0);
+			gap1 += p - gap0;
+		}
+		gap0 = p;
+	}
+
+	// Make room for n bytes in the text gap
+	private void growGap(int n) {
+		if (gap1 - gap0 >= n) return;
+		byte[] t = new byte[Math.max(2 * text.length, length + n + 1024)];
+		int tail = text.length - gap1;
+		System.arraycopy(text, 0, t, 0, gap0);
+		System.arraycopy(text, gap1, t, t.length - tail, tail);
+		gap1 = t.length - tail;
+		text = t;
+	}
+
+	// Return the start of the first line at or after p whose predecessor
+	// contains no quote (a char constant may be scanned beyond its line), or length
+	private int lineStart(int p) {
+		boolean quote = false;
+		for (int i = p - 1; i >= 0 && at(i) != '\n'; i--)
+			if (at(i) == '\'') {quote = true; break;}
+		for (; p < length; p++) {
+			int b = at(p);
+			if (b == '\n') {
+				if (!quote) return p + 1;
+				quote = false;
+			} else if (b == '\'') quote = true;
+		}
+		return length;
+	}
+
+	//---------- token gap buffer
+
+	private int tokOff(int i) {
+		return i < tg0 ? off[i] : off[i + tg1 - tg0] + length;
+	}
+
+	private int tokLine(int i) {
+		return i < tg0 ? line[i] : line[i + tg1 - tg0] + endLine;
+	}
+
+	// Move the token gap to token i
+	private void moveTokenGap(int i) {
+		for (; tg0 > i; tg0--, tg1--) copyToken(tg0 - 1, tg1 - 1, -length, -endLine);
+		for (; tg0 < i; tg0++, tg1++) copyToken(tg1, tg0, length, endLine);
+	}
+
+	private void copyToken(int from, int to, int dOff, int dLine) {
+		kind[to] = kind[from]; line[to] = line[from] + dLine; col[to] = col[from];
+		val[to] = val[from]; off[to] = off[from] + dOff; len[to] = len[from];
+	}
+
+	// Append a token before the token gap
+	private void add(int k, int l, int c, int v, int o, int n) {
+		if (tg0 == tg1) { // grow the token arrays
+			int[] k0 = kind, l0 = line, c0 = col, v0 = val, o0 = off, n0 = len;
+			int tail = k0.length - tg1;
+			newTokens(2 * k0.length);
+			for (int[][] a : new int[][][] {{k0, kind}, {l0, line}, {c0, col}, {v0, val}, {o0, off}, {n0, len}}) {
+				System.arraycopy(a[0], 0, a[1], 0, tg0);
+				System.arraycopy(a[0], tg1, a[1], a[1].length - tail, tail);
+			}
+			tg1 = kind.length - tail;
+		}
+		kind[tg0] = k; line[tg0] = l; col[tg0] = c; val[tg0] = v; off[tg0] = o; len[tg0] = n;
+		tg0++;
+	}
+
+	//---------- public interface
+
+	// Set the text and scan it completely
+	public void init(byte[] b) {
+		text = new byte[b.length + 1024];
+		System.arraycopy(b, 0, text, 0, b.length);
+		length = gap0 = b.length; gap1 = text.length;
+		tg0 = 0; tg1 = kind.length;
+		scanner.init(ByteBuffer.wrap(text, 0, length));
+		TokenBuffer tb = new TokenBuffer(256);
+		do {
+			scanner.fill(tb);
+			for (int i = 0; i < tb.size; i++) add(tb.kind[i], tb.line[i], tb.col[i], tb.val[i], tb.off[i], tb.len[i]);
+		} while (tb.kind[tb.size - 1] != eof);
+		endLine = line[tg0 - 1];
+		reportErrors(Integer.MAX_VALUE, 0);
+		changed = 0; inserted = tg0; removed = 0;
+	}
+
+	public void init(String s) {
+		init(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Replace the n bytes at position pos by the bytes of s and re-scan
+	public void edit(int pos, int n, byte[] s) {
+		if (pos < 0 || n < 0 || pos + n > length) throw new IndexOutOfBoundsException("edit " + pos + "+" + n);
+		// restart at the last token that starts before pos, or at the beginning
+		int lo = 0, hi = size() - 1;	// the eof token starts at length >= pos
+		while (lo < hi) {
+			int m = (lo + hi + 1) >>> 1;
+			if (tokOff(m) < pos) lo = m; else hi = m - 1;
+		}
+		while (lo > 0 && tokOff(lo - 1) == tokOff(lo)) lo--;	// both halves of a surrogate pair start there
+		int r = lo, p = 0, ln = 1, cl = 1, size = size();
+		if (tokOff(r) < pos) {p = tokOff(r); ln = line(r); cl = col(r);}
+		moveTokenGap(r);
+		// replace the text
+		moveGap(pos);
+		gap1 += n;
+		growGap(s.length);
+		System.arraycopy(s, 0, text, gap0, s.length);
+		gap0 += s.length;
+		length += s.length - n;
+		int editEnd = pos + s.length;
+		// drop the old tokens that start before the end of the edit
+		while (off[tg1] + length < editEnd) tg1++;
+		// scan until a new token starts where an old one does
+		errCount = 0;
+		TokenBuffer tb = new TokenBuffer(64);
+		for (int w = window; ; w *= 2) {
+			int e = lineStart(Math.min(length, editEnd + w));
+			moveGap(e);
+			scanner.init(ByteBuffer.wrap(text, p, e - p), ln, cl);
+			do {
+				scanner.fill(tb);
+				for (int i = 0; i < tb.size; i++) {
+					if (tb.kind[i] == eof && e < length) break; // end of the window
+					int o = tb.off[i];
+					if (o >= editEnd) {
+						while (off[tg1] + length < o) tg1++;
+						if (off[tg1] + length == o) { // in sync: shift the rest
+							int colDelta = tb.col[i] - col[tg1];
+							for (int k = tg1; k < kind.length && line[k] == line[tg1]; k++) col[k] += colDelta;
+							endLine = tb.line[i] - line[tg1];
+							reportErrors(tb.line[i], tb.col[i]);
+							changed = r; inserted = tg0 - r; removed = size + inserted - size();
+							return;
+						}
+					}
+					add(tb.kind[i], tb.line[i], tb.col[i], tb.val[i], o, tb.len[i]);
+				}
+			} while (tb.kind[tb.size - 1] != eof);
+			p = e; ln = scanner.line; cl = 1;
+		}
+	}
+
+	public void edit(int pos, int n, String s) {
+		edit(pos, n, s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Report the collected errors that lie before line l, column c
+	private void reportErrors(int l, int c) {
+		for (int i = 0; i < errCount; i++)
+			if (errLine[i] < l || errLine[i] == l && errCol[i] < c) diag.error(errLine[i], errCol[i], errMsg[i]);
+		errCount = 0;
+	}
+
+	// Number of tokens including the eof token
+	public int size() {
+		return kind.length - (tg1 - tg0);
+	}
+
+	public int length() {
+		return length;
+	}
+
+	private int index(int i) {
+		return i < tg0 ? i : i + tg1 - tg0;
+	}
+
+	// Attributes of token i (see TokenBuffer)
+	public int kind(int i) {return kind[index(i)];}
+	public int line(int i) {return tokLine(i);}
+	public int col(int i)  {return col[index(i)];}
+	public int val(int i)  {return val[index(i)];}
+	public int off(int i)  {return tokOff(i);}
+	public int len(int i)  {return len[index(i)];}
+
+	// A copy of the text
+	public byte[] text() {
+		byte[] b = new byte[length];
+		System.arraycopy(text, 0, b, 0, gap0);
+		System.arraycopy(text, gap1, b, gap0, length - gap0);
+		return b;
+	}
+
+	// The current token stream for the parser, from token i on. The source text
+	// is not attached to the chunks (TokenBuffer.string is not available).
+	public TokenSource tokens(int i) {
+		return new TokenSource() {
+			private final TokenBuffer b = new TokenBuffer(1024);
+			private int next = i;	// next token to deliver
+
+			public TokenBuffer nextChunk() {
+				b.size = 0;
+				next = Math.min(next, size() - 1);	// stay at eof
+				for (int n = Math.min(size(), next + 1024); next < n; next++)
+					b.add(kind(next), line(next), col(next), val(next), off(next), len(next));
+				return b;
+			}
+
+			public void close() {}
+		};
+	}
+}
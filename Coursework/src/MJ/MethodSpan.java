@@ -0,0 +1,21 @@
+/* MicroJava Method Span
+   ====================
+Where a method declaration lies in the token stream and in the code, as
+recorded by the parser in incremental mode (see IncrementalCompilation).
+*/
+package MJ;
+
+import MJ.SymTab.Obj;
+
+public class MethodSpan {
+	public Obj meth;		// the method
+	public Obj mark;		// last object of the program scope before the method
+	public int start;		// index of the first token
+	public int body;		// index of the first token after the parameter list
+	public int end;			// index of the first token after the declaration
+	public int codeStart;	// address of the first instruction
+	public int codeEnd;		// address after the last instruction
+	public int errDist;	// the parser's error distance at start
+	public int errDistEnd;	// the parser's error distance at end
+	public int errors;		// number of errors reported in the method
+}
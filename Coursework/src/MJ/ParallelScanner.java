@@ -0,0 +1,161 @@
+/* MicroJava Parallel Scanner
+   =========================
+Scans a large source in chunks on the fork-join pool. Comments end at the
+end of their line and char constants are written on one line, so a chunk
+that starts at the beginning of a line can be scanned without the text
+before it if its start line is known. Only the error recovery of a char
+constant without closing quote reads beyond the end of a line, so chunks
+are cut only after lines that contain no quote.
+
+The first call of nextChunk scans everything: first the newlines of all
+chunks are counted in parallel to give every chunk its start line, then
+every chunk is scanned by its own Scanner into its own name table. The
+local name ids are mapped to global ones in chunk order, so the tokens get
+the same ids, lines and columns as with a sequential scan. Lexical errors
+are reported in source order, but all before the errors of the parser.
+*/
+package MJ;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ForkJoinTask;
+import MJ.SymTab.Names;
+
+public class ParallelScanner implements TokenSource {
+	private static final int  // token codes
+		ident = 1,
+		eof   = 36;
+	private static final int minChunk = 1 << 16;	// smallest chunk worth a worker (bytes)
+	private static final int bufSize = 4096;	// tokens per TokenBuffer
+
+	// Lexical error found in a chunk
+	private static class LexError {
+		int line, col;
+		String msg;
+	}
+
+	// Collects the errors of one chunk so that they can be reported in source order
+	private static class Errors extends Diagnostics {
+		List<LexError> list = new ArrayList<LexError>();
+
+		public void error(int line, int col, String msg) {
+			LexError e = new LexError();
+			e.line = line; e.col = col; e.msg = msg;
+			list.add(e);
+		}
+	}
+
+	// Source bytes start..end-1 that begin at the start of a line
+	private static class Chunk {
+		int start, end;
+		int line;			// line of start (number of newlines before it, + 1)
+		int newlines;		// number of newlines in the chunk
+		Names names = new Names();	// names of this chunk
+		Errors errors = new Errors();
+		List<TokenBuffer> tokens = new ArrayList<TokenBuffer>();
+		int[] ids;		// global id of each local name id
+	}
+
+	private final ByteBuffer src;
+	private final Names names;
+	private final Diagnostics diag;
+	private final int n;			// desired number of chunks
+	private Chunk[] chunks;		// null before the first nextChunk
+	private int cur;			// chunk of the next TokenBuffer
+	private int next;		// index of the next TokenBuffer in chunks[cur].tokens
+
+	// Scan the bytes between position and limit of src in about n chunks
+	public ParallelScanner(ByteBuffer src, Names names, Diagnostics diag, int n) {
+		this.src = src; this.names = names; this.diag = diag; this.n = Math.max(1, n);
+	}
+
+	// Scan src in at most one chunk per core
+	public ParallelScanner(ByteBuffer src, Names names, Diagnostics diag) {
+		this(src, names, diag, Math.min(Runtime.getRuntime().availableProcessors(),
+			(src.limit() - src.position()) / minChunk));
+	}
+
+	// Return the start of the first line after p whose predecessor has no quote, or end
+	private int lineStart(int p, int end) {
+		boolean quote = false;	// quote in the line containing p (before p)
+		for (int i = p - 1; i >= src.position() && src.get(i) != '\n'; i--)
+			if (src.get(i) == '\'') {quote = true; break;}
+		for (; p < end; p++) {
+			int b = src.get(p);
+			if (b == '\n') {
+				if (!quote) return p + 1;
+				quote = false;
+			} else if (b == '\'') quote = true;
+		}
+		return end;
+	}
+
+	private void split() {
+		int start = src.position(), end = src.limit();
+		List<Chunk> list = new ArrayList<Chunk>();
+		for (int k = 1, p = start; p < end || list.isEmpty(); k++) {
+			Chunk c = new Chunk();
+			c.start = p;
+			c.end = k == n ? end : lineStart(Math.max(p, start + (int)((long)(end - start) * k / n)), end);
+			list.add(c);
+			p = c.end;
+		}
+		chunks = list.toArray(new Chunk[list.size()]);
+	}
+
+	private static void invokeAll(Chunk[] chunks, java.util.function.Consumer<Chunk> action) {
+		List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+		for (Chunk c : chunks) tasks.add(ForkJoinTask.adapt(() -> action.accept(c)));
+		ForkJoinTask.invokeAll(tasks);
+	}
+
+	private void countNewlines(Chunk c) {
+		int lines = 0;
+		for (int i = c.start; i < c.end; i++)
+			if (src.get(i) == '\n') lines++;
+		c.newlines = lines;
+	}
+
+	// Scan chunk c into its TokenBuffers; only the last chunk keeps its eof token
+	private void scan(Chunk c, boolean last) {
+		Scanner s = new Scanner(c.names, c.errors);
+		s.init(src.duplicate().position(c.start).limit(c.end), c.line);
+		TokenBuffer b;
+		do {
+			b = new TokenBuffer(bufSize);
+			s.fill(b);
+			c.tokens.add(b);
+		} while (b.kind[b.size - 1] != eof);
+		if (!last) b.size--;
+	}
+
+	private void scanAll() {
+		split();
+		invokeAll(chunks, this::countNewlines);
+		chunks[0].line = 1;
+		for (int i = 1; i < chunks.length; i++) chunks[i].line = chunks[i-1].line + chunks[i-1].newlines;
+		Chunk lastChunk = chunks[chunks.length - 1];
+		invokeAll(chunks, c -> scan(c, c == lastChunk));
+		for (Chunk c : chunks) { // join in source order
+			c.ids = new int[c.names.size()];
+			for (int id = 0; id < c.ids.length; id++) c.ids[id] = names.intern(c.names.name(id));
+			for (LexError e : c.errors.list) diag.error(e.line, e.col, e.msg);
+		}
+	}
+
+	public TokenBuffer nextChunk() {
+		if (chunks == null) scanAll();
+		for (;;) {
+			Chunk c = chunks[cur];
+			if (next < c.tokens.size()) {
+				TokenBuffer b = c.tokens.get(next);
+				c.tokens.set(next++, null);	// no longer needed after the parser released it
+				for (int i = 0; i < b.size; i++)
+					if (b.kind[i] == ident) b.val[i] = c.ids[b.val[i]];
+				if (b.size > 0) return b;
+			} else {cur++; next = 0;}
+		}
+	}
+
+	public void close() {}
+}
@@ -3,6 +3,7 @@
 */
 package MJ;
 
+import java.io.PrintWriter;
 import java.util.*;
 
 import MJ.CodeGen.Code;
@@ -55,37 +56,105 @@ public class Parser {
 		"program", "read", "return", "void", "while", "eof"
 		};
 
-	private static Token t;			// current token (recently recognized)
-	private static Token la;		// lookahead token
-	private static int sym;			// always contains la.kind
-	public  static int errors;  // error counter
-	private static int errDist;	// no. of correctly recognized tokens since last error
+	private TokenBuffer tb;	// buffer holding the current token
+	private TokenBuffer lb;	// buffer holding the lookahead token
+	private TokenBuffer prev;	// keeps the current token when lb is released
+	private TokenSource tokens;	// delivers the chunks lb
+	private int base;			// index of lb's first token in the token stream
+	private int t;				// current token (recently recognized): index in tb
+	private int la;			// lookahead token: index in lb
+	private int sym;			// always contains lb.kind[la]
+	public int errors;  // error counter
+	private int errDist;	// no. of correctly recognized tokens since last error
+
+	// symbol sets as bit masks indexed by token code (all codes are < 64);
+	// they are built once and shared by all parsers
+	private static final long
+		exprStart     = set(ident, number, charCon, new_, lpar, minus),
+		statStart     = set(ident, if_, while_, read_, return_, print_, lbrace, semicolon),
+		statSync      = set(eof, if_, while_, read_, return_, print_, lbrace, semicolon),
+		statSeqFollow = set(rbrace, eof),
+		declStart     = set(final_, ident, class_),
+		declFollow    = set(lbrace, void_, eof),
+		firststate    = set(if_, while_, read_, return_, lbrace, ident, print_);
+
+	private static long set(int... syms) {
+		long s = 0;
+		for (int sym : syms) s |= 1L << sym;
+		return s;
+	}
+
+	// Is sym in the symbol set s?
+	private static boolean in(long s, int sym) {
+		return (s >>> sym & 1) != 0;
+	}
+
+	// results of Condition for constant comparisons, besides Code.eq..ge
+	private static final int alwaysTrue = 6, alwaysFalse = 7;
+
+	private Obj curMethod;
 
-	private static BitSet exprStart, statStart, statSeqFollow, statSync, declStart, declFollow, firststate;
+	// the designator of the assignment being compiled, the code that computes
+	// its address, and the index of the first token of its right side
+	private Operand lhs;
+	private int lhsStart, lhsEnd, rhs = -1;
 
-	private static Obj curMethod;
+	// incremental mode: record the method spans (see IncrementalCompilation)
+	public boolean incremental;
+	public List<MethodSpan> methods = new ArrayList<MethodSpan>();
+	public Scope program;	// program scope of the last parse
+
+	// if set, parse() records the syntax tree of the program here
+	public Ast ast;
+
+	private final Scanner scanner;
+	private final Names names;
+	private final Tab tab;
+	private final Code code;
+	private final Diagnostics diag;
+
+	public Parser(Compilation c) {
+		scanner = c.scanner; names = c.names; tab = c.tab; code = c.code; diag = c.diag;
+	}
 
 	//------------------- auxiliary methods ----------------------
-	private static void scan() {
-		t = la;
-		la = Scanner.next();
-		sym = la.kind;
+	private void scan() {
+		tb = lb; t = la;
+		if (++la == lb.size) { // chunk consumed: save t and fetch the next one
+			if (lb.kind[t] == eof) la = t;	// stay at eof
+			else {
+				prev.set(lb, t);
+				tb = prev; t = 0;
+				base += lb.size;
+				lb = tokens.nextChunk();
+				la = 0;
+			}
+		}
+		sym = lb.kind[la];
 		errDist++;
 
-		System.out.print("line " + la.line + ", col " + la.col + ": " + name[sym]);
-		if (sym == ident) System.out.print(" (" + la.string + ")");
-		if (sym == number || sym == charCon) System.out.print(" (" + la.val + ")");
-		System.out.println();
+		if (diag.tokens) {
+			PrintWriter out = diag.out;
+			out.print("line " + lb.line[la] + ", col " + lb.col[la] + ": " + name[sym]);
+			if (sym == ident) out.print(" (" + names.name(lb.val[la]) + ")");
+			if (sym == number || sym == charCon) out.print(" (" + lb.val[la] + ")");
+			out.println();
+		}
 	}
 
-	private static void check(int expected) {
+	private void check(int expected) {
 		if (sym == expected) scan();
 		else error(name[expected] + " expected");
 	}
 
-	public static void error(String msg) { // syntactic error at token la
+	// Index of the current token t in the token stream
+	private int pos() {
+		return tb == prev ? base - 1 : base + t;
+	}
+
+	public void error(String msg) { // syntactic error at token la
 		if (errDist >= 3) {
-			System.out.println("-- line " + la.line + " col " + la.col + ": " + msg);
+			diag.error(lb.line[la], lb.col[la], msg);
 			errors++;
 		}
 		errDist = 0;
@@ -94,13 +163,14 @@ public class Parser {
 	//-------------- parsing methods (in alphabetical order) -----------------
 
 	// Program = "program" ident {ConstDecl | ClassDecl | VarDecl} '{' {MethodDecl} '}'.
-	private static void Program() {
+	private void Program() {
 		check(program_);
 		check(ident);
-		Tab.openScope();
-		Tab.insert(Obj.Prog, t.string, Tab.noType);
+		tab.openScope();
+		Obj prog = tab.insert(Obj.Prog, tb.val[t], Tab.noType);
+		if (ast != null) ast.open(Ast.Program, pos(), prog, 0);
 		for (;;) { // Using infinite loops
-			if (declStart.get(sym)) { // Check if it is the beginning of a statement
+			if (in(declStart, sym)) { // Check if it is the beginning of a statement
 				if (sym == final_) {
 					ConstDecl();
 				} else if (sym == class_) {
@@ -119,55 +189,64 @@ public class Parser {
 			}
 		}
 		check(lbrace);
-		while (sym == void_ || sym == ident)MethodDecl();
+		while (sym == void_ || sym == ident) {
+			MethodSpan span = MethodDecl();
+			if (incremental) methods.add(span);
+		}
 		check(rbrace);
-		Tab.dumpScope(Tab.curScope.locals);
-		Code.dataSize = Tab.curScope.nVars; //Set number of vars
-		Tab.closeScope();
+		if (diag.symbols) Tab.dumpScope(tab.curScope.locals, diag.out);
+		code.dataSize = tab.curScope.nVars; //Set number of vars
+		program = tab.curScope;
+		tab.closeScope();
+		if (ast != null) ast.close();
 	}
 
 	// Parsing methods for all productions
 	//ConstDecl = "final" Type ident "=" (number | charConst) ";".
-	private static void ConstDecl() {
+	private void ConstDecl() {
 		check(final_);
 		Struct type = Type();
 		check(ident);
-		Obj ob = Tab.insert(Obj.Con, t.string, type); // insert into symtable
+		Obj ob = tab.insert(Obj.Con, tb.val[t], type); // insert into symtable
+		if (ast != null) ast.leaf(Ast.Const, pos(), ob, 0);
 		check(assign);
 		if (sym == number){
 			scan();
-			if (ob.type == Tab.intType) ob.val = t.val;
+			if (ob.type == Tab.intType) ob.val = tb.val[t];
 			else error ("Char const expected");
 		}else if (sym == charCon){
 			scan();
-			if (ob.type == Tab.charType) ob.val = t.val;
+			if (ob.type == Tab.charType) ob.val = tb.val[t];
 			else error ("Int const expected");
 		}else error ("Invalid ConstDecl. Number or character constant expected");
 		check(semicolon);
 	}
 
 	//VarDecl = Type ident {"," ident } ";".
-	private static void VarDecl() {
+	private void VarDecl() {
 		Struct type;
 		type = Type();
 		check(ident); // variable name
-		Tab.insert(Obj.Var, t.string, type);
+		Obj ob = tab.insert(Obj.Var, tb.val[t], type);
+		if (ast != null) ast.leaf(Ast.Var, pos(), ob, 0);
 		while (sym == comma) {
 			scan();
 			check(ident);
-			Tab.insert(Obj.Var, t.string, type);
+			ob = tab.insert(Obj.Var, tb.val[t], type);
+			if (ast != null) ast.leaf(Ast.Var, pos(), ob, 0);
 		}
 		check(semicolon);
 	}
 
 	//ClassDecl = "class" ident "{" {VarDecl} "}".
-	private static void ClassDecl() {
+	private void ClassDecl() {
 		Struct type = new Struct(Struct.Class);
 		Obj ob;
 		check(class_);
 		check(ident);
-		ob = Tab.insert(Obj.Type, t.string, type);
-		Tab.openScope();
+		ob = tab.insert(Obj.Type, tb.val[t], type);
+		if (ast != null) ast.open(Ast.Class, pos(), ob, 0);
+		tab.openScope();
 		check(lbrace);
 		for(;;) {
 			if (sym == ident) {
@@ -179,17 +258,21 @@ public class Parser {
 				do scan(); while (sym != rbrace && sym != ident && sym != eof);
 			}
 		}
-		ob.type.fields = Tab.curScope.locals;
-		ob.type.nFields = Tab.curScope.nVars;
+		ob.type.fields = tab.curScope.locals;
+		ob.type.nFields = tab.curScope.nVars;
 		check(rbrace);
-		Tab.closeScope();
+		tab.closeScope();
+		if (ast != null) ast.close();
 	}
 
 	//MethodDecl = (Type | "void") ident "(" [FormPars] ")" {VarDecl} Block.
-	private static void MethodDecl() {
+	private MethodSpan MethodDecl() {
 		Struct type = Tab.noType;
-		String name;
+		int name;
 		int n = 0;
+		MethodSpan span = new MethodSpan();
+		span.start = base + la; span.errDist = errDist; span.errors = errors;
+		span.mark = tab.lastObj(); span.codeStart = code.pc;
 		if (type.isRefType())error("methods may only return int or char");
 		if (sym == void_) {
 			scan();
@@ -199,101 +282,92 @@ public class Parser {
             error("Invalid Method Declaration");
         }
 		check(ident); // method name
-		name = t.string;
-		curMethod = Tab.insert(Obj.Meth, name, type);
+		name = tb.val[t];
+		curMethod = tab.insert(Obj.Meth, name, type);
+		if (ast != null) ast.open(Ast.Method, pos(), curMethod, 0);
 		check(lpar);
-		Tab.openScope();
+		tab.openScope();
 		if (sym == ident) {
 			n = FormPars(); // formal parameter
 		}
 		curMethod.nPars = n;
-		if (name.equals("main")){
-			Code.mainPc = Code.pc;
+		if (curMethod.name.equals("main")){
+			code.mainPc = code.pc;
 			if (curMethod.type != Tab.noType) error("Main method must be void");
 			if (curMethod.nPars != 0) error("Main method must not have parameters");
 		}
 		check(rpar);
+		span.body = base + la;
 		while (sym == ident) VarDecl(); // Handling local variable declarations
-		curMethod.locals = Tab.curScope.locals; //Set methods local variables
-		curMethod.adr = Code.pc; //Set methods address for scope
-		Code.put(Code.enter);
-		Code.put(curMethod.nPars); //Put the number of parameters on the code buffer
-		Code.put(Tab.curScope.nVars);
+		curMethod.locals = tab.curScope.locals; //Set methods local variables
+		curMethod.adr = code.pc; //Set methods address for scope
+		code.put(Code.enter);
+		code.put(curMethod.nPars); //Put the number of parameters on the code buffer
+		code.put(tab.curScope.nVars);
 		Block();
 		if (curMethod.type == Tab.noType) {
-			Code.put(Code.exit);
-			Code.put(Code.return_); //Return from this method
+			code.put(Code.exit);
+			code.put(Code.return_); //Return from this method
 		} else {  // end of function reached without a return statement
-			Code.put(Code.trap);
-			Code.put(1);
+			code.put(Code.trap);
+			code.put(1);
 		}
-		Tab.closeScope();
+		code.endMethod(curMethod);
+		tab.closeScope();
+		if (ast != null) ast.close();
+		span.meth = curMethod;
+		span.end = base + la; span.codeEnd = code.pc; span.errors = errors - span.errors;
+		span.errDistEnd = errDist;
+		return span;
 	}
 
 	//FormPars = Type ident {"," Type ident}.
-	private static int FormPars() {
+	private int FormPars() {
 		int parameterNumber = 0;
 		Struct type;
-		String name;
+		int name;
 		type = Type(); //Receive type of parameter
 		check(ident);
-		name = t.string;
-		Tab.insert(Obj.Var, name, type);
+		name = tb.val[t];
+		Obj par = tab.insert(Obj.Var, name, type);
+		if (ast != null) ast.leaf(Ast.Par, pos(), par, 0);
 		parameterNumber++;
 		while(sym == comma) {
 			scan();
 			type = Type();
 			check(ident);
-			name = t.string;
-			Tab.insert(Obj.Var, name, type);
+			name = tb.val[t];
+			par = tab.insert(Obj.Var, name, type);
+			if (ast != null) ast.leaf(Ast.Par, pos(), par, 0);
 			parameterNumber++;
 		}
 		return parameterNumber;
 	}
 
 	//Type = ident ["[" "]"].
-	private static Struct Type() {
+	private Struct Type() {
 		check(ident);
-		Obj ob = Tab.find(t.string);// check in symbol table
-		Struct type;
+		Obj ob = tab.find(tb.val[t]);// check in symbol table
+		Struct type = ob.type;
 		if (ob.kind != Obj.Type) error("Wrong type!");
 		if (sym == lbrack){  // change the struct type as array of the old type when has brack.
 			scan();
 			check(rbrack);
-			type = new Struct(Struct.Arr);
-			type.elemType = ob.type;
+			type = type.arrayType();
 		}
-		return ob.type;
+		return type;
 	}
 
 	// Block = "{" {Statement} "}".
-	private static void Block()
+	private void Block()
 	{
+		if (ast != null) ast.open(Ast.Block, base + la, null, 0);
 		check(lbrace);
-		while(!statSeqFollow.get(sym))Statement();
+		while(!in(statSeqFollow, sym))Statement();
 		check(rbrace);
+		if (ast != null) ast.close();
 	}
 
-	// Block = "{" {Statement | VarDecl} "}".
-//	private static void Block(){ //solving the conflict with semantic information
-//		check(lbrace);
-//		for (;;){
-//			if (NextTokenIsType())VarDecl();
-//			else if (firststate.get(sym))Statement();
-//			else if (statSeqFollow.get(sym)) break;
-//			else {
-//				error("Unexpected symbol, expected a variable declaration or a statement.");
-//			}
-//		}
-//		check(rbrace);
-//	}
-//
-//	private static  boolean NextTokenIsType(){
-//		if (sym != ident) return false;
-//		Obj obj = Tab.find(la.string);
-//		return obj.kind == Obj.Type;
-//	}
-
 	//Statement = Designator ("=" Expr | ActPars) ";"
 	//	| "if" "(" Condition ")" Statement ["else" Statement]
 	//	| "while" "(" Condition ")" Statement
@@ -302,17 +376,14 @@ public class Parser {
 	//	| "print" "(" Expr ["," number] ")" ";"
 	//	| Block
 	//	| ";".
-	private static void Statement() {
-        /* if (!statStart.get(sym)){
-            error("Invalid start of statement");
-            while(!statStart.get(sym)) scan();
-            errDist = 0;
-        } */
-        if (!statStart.get(sym)) { //improvement of the synchronization
+	private void Statement() {
+		Operand x, y;
+		int op, adr, adr2, top;
+        if (!in(statStart, sym)) { //improvement of the synchronization
             error("Invalid start of statement");
             do {
                 scan();
-            } while (!statSync.get(sym) && sym != rbrace && sym != semicolon);
+            } while (!in(statSync, sym) && sym != rbrace && sym != semicolon);
             if (sym == semicolon) {
                 scan();
             }
@@ -320,233 +391,522 @@ public class Parser {
         }
 		if (sym == ident) {
 			// Assignment statements or method calls
-			Designator();
+			int pc0 = code.pc;
+			x = Designator();
 			if (sym == assign) {
+				if (ast != null) ast.wrap(Ast.Assign, base + la, null, 0);
 				scan();
-				Expr();
+				lhs = x; lhsStart = pc0; lhsEnd = code.pc; rhs = base + la;
+				y = Expr();
+				rhs = -1; lhs = null;
+				if (y.type.assignableTo(x.type)) code.assign(x, y);
+				else error("incompatible types in assignment");
+				if (ast != null) ast.close();
 			} else if (sym == lpar) {
-				ActPars();
+				call(x);
+				if (x.type != Tab.noType) code.put(Code.pop); // discard the function result
 			} else {
 				error("= or ( expected after identifier");
 			}
 			check(semicolon);
 		} else if (sym == if_) {
 			// if statement
+			if (ast != null) ast.open(Ast.If, base + la, null, 0);
 			scan();
 			check(lpar);
-			Condition();
+			op = Condition();
 			check(rpar);
-			Statement();
-			if (sym == else_) {
-				scan();
+			if (op == alwaysTrue || op == alwaysFalse) { // only the branch taken is translated
+				top = code.pc;
 				Statement();
+				if (op == alwaysFalse) code.truncate(top);
+				if (sym == else_) {
+					scan();
+					top = code.pc;
+					Statement();
+					if (op == alwaysTrue) code.truncate(top);
+				}
+			} else {
+				code.putFalseJump(op, 0);
+				adr = code.pc - 2;
+				Statement();
+				if (sym == else_) {
+					scan();
+					code.putJump(0);
+					adr2 = code.pc - 2;
+					code.fixup(adr);
+					Statement();
+					code.fixup(adr2);
+				} else code.fixup(adr);
 			}
+			if (ast != null) ast.close();
 		} else if (sym == while_) {
+			if (ast != null) ast.open(Ast.While, base + la, null, 0);
 			scan();
+			top = code.pc;
+			Effects outer = code.openLoop();
 			check(lpar);
-			Condition();
+			op = Condition();
 			check(rpar);
-			Statement();
+			if (op == alwaysFalse) { // the body is never executed
+				Statement();
+				code.truncate(top);
+				code.closeLoop(outer, curMethod, -1, -1);
+			} else if (op == alwaysTrue) { // endless loop without a test
+				Statement();
+				code.putJump(top);
+				code.closeLoop(outer, curMethod, top, top);
+			} else { // the condition guards the loop and is tested again at its end
+				int end = code.pc;
+				code.putFalseJump(op, 0);
+				adr = code.pc - 2;
+				int body = code.pc;
+				Statement();
+				if (code.pc <= Code.maxSize) code.relocate(code.copy(top, end), top);
+				code.putTrueJump(op, body);
+				code.closeLoop(outer, curMethod, top, body);	// invariant loads go before body
+				code.fixup(adr);
+			}
+			if (ast != null) ast.close();
 		} else if (sym == read_) {
 			// read statement
+			if (ast != null) ast.open(Ast.Read, base + la, null, 0);
 			scan();
 			check(lpar);
-			Designator();
+			x = Designator();
+			if (x.type == Tab.intType) code.put(Code.read);
+			else if (x.type == Tab.charType) code.put(Code.bread);
+			else error("can only read int or char variables");
+			code.assign(x, new Operand(Operand.Stack, 0, x.type));
 			check(rpar);
 			check(semicolon);
+			if (ast != null) ast.close();
 		} else if (sym == print_) {
 			// print statement
+			int n = ast != null ? ast.open(Ast.Print, base + la, null, 0) : 0;
 			scan();
 			check(lpar);
-			Expr();
+			x = Expr();
+			code.load(x);
+			int width = 0;
 			if (sym == comma) {
 				scan();
 				check(number);
+				width = tb.val[t];
 			}
+			code.load(new Operand(width));
+			if (x.type == Tab.intType) code.put(Code.print);
+			else if (x.type == Tab.charType) code.put(Code.bprint);
+			else error("can only print int or char variables");
 			check(rpar);
 			check(semicolon);
+			if (ast != null) {ast.val[n] = width; ast.close();}
 		} else if (sym == return_) {
 			// return statement
+			if (ast != null) ast.open(Ast.Return, base + la, null, 0);
 			scan();
-			if (sym == minus || sym == ident) {
-				Expr();
-			}
+			if (in(exprStart, sym)) {
+				x = Expr();
+				code.load(x);
+				if (curMethod.type == Tab.noType) error("void method must not return a value");
+				else if (!x.type.assignableTo(curMethod.type)) error("return type must match method type");
+			} else if (curMethod.type != Tab.noType) error("return expression expected");
+			code.put(Code.exit);
+			code.put(Code.return_);
 			check(semicolon);
+			if (ast != null) ast.close();
 		} else if (sym == lbrace) {
 			Block();
 		} else if (sym == semicolon) {
+			if (ast != null) ast.leaf(Ast.Empty, base + la, null, 0);
 			scan();
 		} else {
 			error("Invalid statement");
 		}
 	}
 
+	// Call the method x; sym is the "(" of its ActPars. x becomes the result.
+	private void call(Operand x) {
+		if (ast != null) ast.wrap(Ast.Call, base + la, x.obj, 0);
+		ActPars(x);
+		if (ast != null) ast.close();
+		if (x.kind == Operand.Meth) {
+			if (x.obj == Tab.lenObj) {code.put(Code.arraylength); x.nonNegative = true;}
+			else if (x.obj != Tab.chrObj && x.obj != Tab.ordObj // chr and ord only change the type
+					&& !code.inline(x.obj, curMethod))
+				code.putCall(x.obj);
+		}
+		x.kind = Operand.Stack;
+	}
+
 	//ActPars = "(" [ Expr {"," Expr} ] ")".
-	private static void ActPars() {
+	private void ActPars(Operand m) {
+		Operand ap;
+		Obj fp = null;	// next formal parameter
+		int nForm = 0, nAct = 0;
 		check(lpar);
-		if (exprStart.get(sym)) {
-			Expr();
-			while (sym == comma) {
-				scan();
-				Expr();
+		if (m.kind == Operand.Meth) {
+			fp = m.obj.locals; nForm = m.obj.nPars;
+		} else error("called object is not a method");
+		if (in(exprStart, sym)) {
+			for (;;) {
+				ap = Expr();
+				code.load(ap);
+				nAct++;
+				if (fp != null && nAct <= nForm) {
+					if (!ap.type.assignableTo(fp.type)) error("parameter type mismatch");
+					fp = fp.next;
+				}
+				if (sym == comma) scan(); else break;
 			}
 		}
+		if (m.kind == Operand.Meth) {
+			if (nAct > nForm) error("more actual than formal parameters");
+			else if (nAct < nForm) error("fewer actual than formal parameters");
+		}
 		check(rpar);
 	}
 
 	//Condition = Expr Relop Expr.
-	private static void Condition() {
-		Expr(); // Left expression
-		Relop();
-		Expr(); // Right expression
+	private int Condition() {
+		Operand x, y;
+		int op;
+		int n = ast != null ? ast.open(Ast.Cond, base + la, null, 0) : 0;
+		x = Expr(); // Left expression
+		if (x.kind != Operand.Con) code.load(x);	// a constant is loaded when y is known
+		op = Relop();
+		if (ast != null) ast.val[n] = op;
+		int pc0 = code.pc;
+		y = Expr(); // Right expression
+		if (!x.type.compatibleWith(y.type)) error("type mismatch");
+		else if (x.type.isRefType() && op != Code.eq && op != Code.ne) error("invalid compare");
+		else if (x.kind == Operand.Con && y.kind == Operand.Con) op = compare(op, x.val, y.val) ? alwaysTrue : alwaysFalse;
+		if (op != alwaysTrue && op != alwaysFalse) {
+			if (x.kind == Operand.Con) loadBefore(x, pc0);
+			code.load(y);
+		}
+		if (ast != null) ast.close();
+		return op;
+	}
+
+	// The value of the comparison a op b
+	private static boolean compare(int op, int a, int b) {
+		switch (op) {
+			case Code.eq: return a == b;
+			case Code.ne: return a != b;
+			case Code.lt: return a < b;
+			case Code.le: return a <= b;
+			case Code.gt: return a > b;
+			default:      return a >= b;
+		}
 	}
 
 	//Relop = "==" | "!=" | ">" | ">=" | "<" | "<=".
-	private  static void Relop(){
+	private int Relop(){
+		int op = Code.eq;
 		if (sym == eql || sym == neq || sym == lss || sym == leq || sym == gtr || sym == geq) {
+			switch (sym) {
+				case eql: op = Code.eq; break;
+				case neq: op = Code.ne; break;
+				case lss: op = Code.lt; break;
+				case leq: op = Code.le; break;
+				case gtr: op = Code.gt; break;
+				case geq: op = Code.ge; break;
+			}
 			scan(); // Comparison Operators
 		} else {
 			error("Comparison operator expected");
 		}
+		return op;
 	}
 
 	//Expr = ["-"] Term {Addop Term}.
-    private static void Expr(){
+    private Operand Expr(){
 		Operand x,y;
+		int op;
         if (sym == minus) {
+			if (ast != null) ast.open(Ast.Neg, base + la, null, 0);
             scan();
-        }
-		Term();
+			x = Term();
+			if (x.type != Tab.intType) error("integer operand required");
+			if (x.kind == Operand.Con && x.type == Tab.intType) x.val = -x.val;
+			else {
+				code.load(x);
+				code.put(Code.neg);
+				x.nonNegative = false;
+			}
+			if (ast != null) ast.close();
+        } else x = Term();
 		for (;;){
-			if (sym == minus){
-				Addop();
-				Term();
-			}else if (sym == plus){
-				Addop();
-				Term();
+			if (sym == minus || sym == plus){
+				op = Addop();
+				if (ast != null) ast.wrap(Ast.BinOp, pos(), null, op);
+				if (x.kind != Operand.Con) code.load(x);	// a constant is loaded when y is known
+				int pc0 = code.pc;
+				y = Term();
+				operation(x, op, y, pc0);
+				if (ast != null) ast.close();
 			} else break;
 		}
+		return x;
     }
 
 	//Term = Factor {Mulop Factor}.
-	private static void Term() {
-		Factor();
+	private Operand Term() {
+		Operand x, y;
+		int op;
+		x = Factor();
 		for (;;) { // Infinite loop, must break out explicitly
 			if (sym == times || sym == slash || sym == rem) {
-				Mulop(); // Process multiplication, division, or modulo operator
-				Factor(); // Process the next factor
+				op = Mulop(); // Process multiplication, division, or modulo operator
+				if (ast != null) ast.wrap(Ast.BinOp, pos(), null, op);
+				if (x.kind != Operand.Con) code.load(x);	// a constant is loaded when y is known
+				int pc0 = code.pc;
+				y = Factor(); // Process the next factor
+				operation(x, op, y, pc0);
+				if (ast != null) ast.close();
 			} else {
 				break; // Break out of the loop if no more multiplication/division/modulo operators
 			}
 		}
+		return x;
+	}
+
+	// Generate x op y (op = Code.add..rem); the code of y starts at pc0 and x
+	// is already loaded unless it is a constant. Two int constants are folded
+	// into the constant x (except a division by 0, which must trap at run time).
+	private void operation(Operand x, int op, Operand y, int pc0) {
+		if (x.type != Tab.intType || y.type != Tab.intType) error("operands must be of type int");
+		else if (x.kind == Operand.Con && y.kind == Operand.Con && !((op == Code.div || op == Code.rem) && y.val == 0)) {
+			switch (op) {
+				case Code.add: x.val += y.val; break;
+				case Code.sub: x.val -= y.val; break;
+				case Code.mul: x.val *= y.val; break;
+				case Code.div: x.val /= y.val; break;
+				case Code.rem: x.val %= y.val; break;
+			}
+			return;
+		}
+		boolean xPos = nonNegative(x), yPos = nonNegative(y);
+		if (x.kind == Operand.Con && y.kind != Operand.Con && op == Code.mul) { // c * y = y * c
+			code.load(y);
+			code.operation(op, x.val, yPos);
+			x.kind = Operand.Stack;
+		} else {
+			if (x.kind == Operand.Con) loadBefore(x, pc0);
+			if (y.kind == Operand.Con) code.operation(op, y.val, xPos);
+			else {
+				code.load(y);
+				code.put(op);
+			}
+		}
+		x.nonNegative = op == Code.rem && xPos || op == Code.div && xPos && yPos;
+	}
+
+	// Is the int x known to be >= 0?
+	private static boolean nonNegative(Operand x) {
+		return x.kind == Operand.Con ? x.val >= 0 : x.kind == Operand.Stack && x.nonNegative;
+	}
+
+	// x, whose code starts at pc0, begins the right side of an assignment to
+	// lhs. If it is the same array element or field, the address computed for
+	// lhs is duplicated instead of being computed again (a[i] = a[i] + 1 gives
+	// ...a, i; dup2; aload; const1; add; astore), provided that computing it
+	// has no side effects.
+	private void reuseAddress(Operand x, int pc0) {
+		if (x.kind != Operand.Elem && x.kind != Operand.Fld) return;
+		if (x.kind != lhs.kind || x.adr != lhs.adr || x.type != lhs.type
+				|| pc0 != lhsEnd || code.pc > Code.maxSize) return;
+		byte[] a = code.copy(lhsStart, lhsEnd);
+		if (!java.util.Arrays.equals(a, code.copy(pc0, code.pc)) || !Code.isPure(a)) return;
+		code.truncate(pc0);
+		code.put(x.kind == Operand.Elem ? Code.dup2 : Code.dup);
+	}
+
+	// Load the constant x before the code generated from pc0 on. That code
+	// is an expression; its only jumps are those of inlined methods, which
+	// are moved with it.
+	private void loadBefore(Operand x, int pc0) {
+		if (code.pc > Code.maxSize) {code.load(x); return;}	// "program too large" was reported
+		byte[] b = code.copy(pc0, code.pc);
+		code.truncate(pc0);
+		code.load(x);
+		code.relocate(b, pc0);
 	}
 
 	/*Factor = Designator  [ActPArs]
                | Number
                | charConst
-               | */
-	private static void Factor() {
+               | "new" ident ["[" Expr "]"]
+               | "(" Expr ")" */
+	private Operand Factor() {
+		Operand x, y;
 		if (sym == number) {
 			scan();
+			x = new Operand(tb.val[t]);
+			if (ast != null) ast.leaf(Ast.Number, pos(), null, x.val);
 		} else if (sym == ident) {
-			Designator();
-            /*if (sym == lpar) { // Checking function call
-                ActPars();
-            }*/
+			boolean first = base + la == rhs;	// the right side of an assignment starts here
+			int pc0 = code.pc;
+			x = Designator();
+			if (sym == lpar) { // Checking function call
+				call(x);
+				if (x.type == Tab.noType) error("procedure called as a function");
+			} else if (first) reuseAddress(x, pc0);
 		} else if (sym == charCon) {
 			scan();
+			x = new Operand(tb.val[t]);
+			x.type = Tab.charType;
+			if (ast != null) ast.leaf(Ast.CharCon, pos(), null, x.val);
 		} else if (sym == lpar) {
 			scan();
-			Expr();
+			x = Expr();
 			check(rpar);
 		} else if (sym == new_) {
 			scan();
 			check(ident); // Checking class names or types
+			Obj obj = tab.find(tb.val[t]);
+			Struct type = obj.type;
+			if (obj.kind != Obj.Type) error("type expected");
 			if (sym == lbrack) {
+				if (ast != null) ast.open(Ast.NewArray, pos(), obj, 0);
 				scan();
-				Expr();
+				y = Expr();
+				if (y.type != Tab.intType) error("array size must be an integer");
+				code.load(y);
+				code.put(Code.newarray);
+				if (type == Tab.charType) code.put(0); else code.put(1);
+				type = type.arrayType();
 				check(rbrack);
+				if (ast != null) ast.close();
+			} else {
+				if (ast != null) ast.leaf(Ast.New, pos(), obj, 0);
+				if (type.kind != Struct.Class) error("class type expected");
+				code.put(Code.new_);
+				code.put2(type.nFields);
 			}
+			x = new Operand(Operand.Stack, 0, type);
 		} else {
 			error("Invalid factor: Unexpected symbol");
+			x = new Operand(Operand.Stack, 0, Tab.noType);
 		}
+		return x;
 	}
 
 	//Designator = ident {"." ident | "[" Exp "]"}.
-	private static void Designator() {
+	private Operand Designator() {
+		Operand x, y;
 		check(ident);
-		Obj obj = Tab.find(t.string);
+		Obj obj = tab.find(tb.val[t]);
+		x = new Operand(obj, this);
+		if (ast != null) ast.leaf(Ast.Ident, pos(), obj, 0);
         for (;;) {
             if (sym == period) {
                 scan();
                 check(ident);
+				Obj fld = null;
+				if (x.type.kind == Struct.Class) {
+					code.load(x);
+					fld = tab.findField(tb.val[t], x.type);
+					x.kind = Operand.Fld; x.adr = fld.adr; x.type = fld.type;
+				} else error("dereferenced object is not a class");
+				if (ast != null) {ast.wrap(Ast.Field, pos(), fld, 0); ast.close();}
             } else if (sym == lbrack) {
+				if (ast != null) ast.wrap(Ast.Index, base + la, null, 0);
                 scan();
-                Expr();
+				if (x.type.kind == Struct.Arr) {
+					code.load(x);
+					y = Expr();
+					if (y.type != Tab.intType) error("index must be an int");
+					code.load(y);
+					x.kind = Operand.Elem; x.type = x.type.elemType;
+				} else {
+					error("indexed object is not an array");
+					Expr();
+				}
                 check(rbrack);
+				if (ast != null) ast.close();
             } else break;
         }
+		return x;
 	}
 
 
 	// Addop = "+" | "-".
-	private  static void Addop(){
+	private int Addop(){
 		if (sym == plus) {
 			scan();
+			return Code.add;
 		} else if (sym == minus) {
 			scan();
+			return Code.sub;
 		} else {
 			error("Expected addition or subtraction operator"); // Error handling
+			return Code.add;
 		}
 	}
 
 	//Mulop = "*" | "/" | "%".
-	private  static void Mulop(){
+	private int Mulop(){
 		if (sym == times) {
 			scan();
+			return Code.mul;
 		} else if (sym == slash) {
 			scan();
+			return Code.div;
 		} else if (sym == rem) {
 			scan();
+			return Code.rem;
 		} else {
 			error("Expected multiplication, division, or modulo operator"); // Error handling
+			return Code.mul;
 		}
 	}
 
-	public static void parse() {
-		// initialize symbol sets
-		BitSet s;
-		s = new BitSet(64); exprStart = s;
-		s.set(ident); s.set(number); s.set(charCon); s.set(new_); s.set(lpar); s.set(minus);
-
-		s = new BitSet(64); statStart = s;
-		s.set(ident); s.set(if_); s.set(while_); s.set(read_);
-		s.set(return_); s.set(print_); s.set(lbrace); s.set(semicolon);
-
-		s = new BitSet(64); statSync = s;
-		s.set(eof); s.set(if_); s.set(while_); s.set(read_);
-		s.set(return_); s.set(print_); s.set(lbrace); s.set(semicolon);
-
-		s = new BitSet(64); statSeqFollow = s;
-		s.set(rbrace); s.set(eof);
-
-		s = new BitSet(64); declStart = s;
-		s.set(final_); s.set(ident); s.set(class_);
-
-		s = new BitSet(64); declFollow = s;
-		s.set(lbrace); s.set(void_); s.set(eof);
+	public void parse() {
+		parse(scanner);
+	}
 
-		s = new BitSet(64); firststate = s;
-		s.set(if_); s.set(while_); s.set(read_); s.set(return_); s.set(lbrace); s.set(ident); s.set(print_);
+	// Parse the single method declaration that starts with the first token of
+	// src, which has the index start in the token stream (incremental mode).
+	// Tab and Code must be in the state they had at this method (see IncrementalCompilation).
+	public MethodSpan parseMethod(TokenSource src, int start, int errDist) {
+		Ast tree = ast;
+		ast = null;	// the tree is only recorded by parse()
+		tokens = src;
+		prev = new TokenBuffer(1);
+		base = start;
+		try {
+			lb = tokens.nextChunk(); la = -1;
+			scan();
+			this.errDist = errDist;
+			return MethodDecl();
+		} finally {
+			tokens.close();
+			ast = tree;
+		}
+	}
 
+	// Parse the tokens delivered by src (the scanner itself or a TokenPipe)
+	public void parse(TokenSource src) {
 		// start parsing
 		errors = 0; errDist = 3;
 		//Initialize
-		Tab.init();
-		Code.init();
-		scan();
-		Program();
-		if (sym != eof) error("end of file found before end of program");
+		tab.init();
+		code.init();
+		tokens = src;
+		prev = new TokenBuffer(1);
+		base = 0;
+		methods.clear();
+		if (ast != null) ast.reset();
+		try {
+			lb = tokens.nextChunk(); la = -1;
+			scan();
+			Program();
+			if (sym != eof) error("end of file found before end of program");
+		} finally {
+			tokens.close();
+		}
 	}
 }
 
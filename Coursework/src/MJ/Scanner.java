@@ -3,8 +3,12 @@
 */
 package MJ;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import MJ.SymTab.Names;
 
-public class Scanner {
+public class Scanner implements TokenSource {
 	private static final char eofCh = '\u0080';
 	private static final char eol = '\n';
 	private static final int  // token codes
@@ -53,186 +57,372 @@ public class Scanner {
 		class_, else_, final_, if_, new_, print_,
 		program_, read_, return_, void_, while_
 	};
+	// keywords indexed by keyHash; the hash is perfect for the above keywords
+	private static final byte[][] keyTab = new byte[32][];
+	private static final int keyTabVal[] = new int[32];
 
-	private static char ch;			// lookahead character
-	public  static int col;			// current column
-	public  static int line;		// current line
-	private static int pos;			// current position from start of source file
-	private static Reader in;  	// source file reader
-	private static char[] lex;	// current lexeme (token string)
+	// character classes of the ASCII characters (others are classified by Character)
+	private static final int
+		letterCl = 1,
+		digitCl  = 2;
+	private static final byte[] charClass = new byte[128];
+
+	static {
+		for (int c = 'a'; c <= 'z'; c++) charClass[c] = letterCl;
+		for (int c = 'A'; c <= 'Z'; c++) charClass[c] = letterCl;
+		for (int c = '0'; c <= '9'; c++) charClass[c] = digitCl;
+		for (int i = 0; i < key.length; i++) {
+			String k = key[i];
+			int h = keyHash(k.charAt(0), k.charAt(k.length() - 1), k.length());
+			keyTab[h] = k.getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+			keyTabVal[h] = keyVal[i];
+		}
+	}
+
+	private char ch;			// lookahead character
+	public int col;			// current column
+	public int line;		// current line
+	private int pos;			// current position from start of source file
+	private char[] lex;	// current lexeme (token string)
+	private ByteBuffer buf;	// source bytes (ASCII or UTF-8)
+	private int bufPos;	// index of next byte in buf
+	private int bufEnd;	// index after last byte in buf
+	private TokenBuffer chunk;	// chunk returned by nextChunk
+	private int chPos;		// index of the first byte of ch in buf
+	private char lowSurrogate;	// pending second half of a 4-byte UTF-8 sequence, or 0
+
+	// attributes of the most recently scanned token (set by scan)
+	private int kind;		// token kind
+	private int tokLine;	// token line
+	private int tokCol;	// token column
+	private int tokVal;	// token value (for number and charConst)
+	private int tokOff;	// index of the first byte of the token in buf
+	private int tokLen;	// length of the token in bytes
+
+	private final Names names;	// name table for identifiers
+	Diagnostics diag;	// receives lexical errors (TokenPipe redirects them)
+
+	public Scanner(Names names, Diagnostics diag) {
+		this.names = names; this.diag = diag;
+	}
+
+	//----- decode a multi-byte UTF-8 sequence whose first byte is b
+	private char utf8(int b) {
+		int n, c;
+		if ((b & 0xe0) == 0xc0) {n = 1; c = b & 0x1f;}
+		else if ((b & 0xf0) == 0xe0) {n = 2; c = b & 0x0f;}
+		else if ((b & 0xf8) == 0xf0) {n = 3; c = b & 0x07;}
+		else return '\ufffd';
+		while (n > 0 && bufPos < bufEnd && (buf.get(bufPos) & 0xc0) == 0x80) {
+			c = (c << 6) | (buf.get(bufPos++) & 0x3f); n--;
+		}
+		if (n > 0) return '\ufffd';
+		if (c >= 0x10000) {
+			lowSurrogate = Character.lowSurrogate(c);
+			return Character.highSurrogate(c);
+		}
+		return (char)c;
+	}
+
+	private static boolean isLetter(char c) {
+		return c < 128 ? charClass[c] == letterCl : Character.isLetter(c);
+	}
+
+	private static boolean isDigit(char c) {
+		return c < 128 ? charClass[c] == digitCl : Character.isDigit(c);
+	}
 
 	//----- ch = next input character
-	private static void nextCh() {
+	private void nextCh() {
+		if (lowSurrogate != 0) {ch = lowSurrogate; lowSurrogate = 0;}
+		else {
+			chPos = bufPos;
+			if (bufPos < bufEnd) {
+				int b = buf.get(bufPos++);
+				ch = b >= 0 ? (char)b : utf8(b & 0xff);
+			} else ch = eofCh;
+		}
+		col++; pos++;
+		if (ch == eol) {line++; col = 0;}
+	}
+
+	//--------- Initialize scanner
+	public void init(Reader r) {
+		StringBuilder sb = new StringBuilder();
+		char[] cbuf = new char[8192];
 		try {
-			ch = (char)in.read(); col++; pos++;
-			if (ch == eol) {line++; col = 0;}
-			else if (ch == '\uffff') ch = eofCh;
+			Reader in = new BufferedReader(r);
+			for (int n = in.read(cbuf); n >= 0; n = in.read(cbuf)) sb.append(cbuf, 0, n);
 		} catch (IOException e) {
-			ch = eofCh;
+			reportError("cannot read source");
 		}
+		init(sb.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
 	}
 
-	//--------- Initialize scanner
-	public static void init(Reader r) {
-		in = new BufferedReader(r);
+	//--------- Initialize scanner for byte-level input from the bytes
+	//          between position and limit of b (ASCII or UTF-8)
+	public void init(ByteBuffer b) {
+		init(b, 1);
+	}
+
+	//--------- Initialize scanner for the bytes between position and limit of b,
+	//          which start at the beginning of the given line (see ParallelScanner)
+	public void init(ByteBuffer b, int line) {
+		init(b, line, 1);
+	}
+
+	//--------- Initialize scanner for the bytes between position and limit of b,
+	//          which start at the given line and column (see IncrementalScanner)
+	public void init(ByteBuffer b, int line, int col) {
+		buf = b; bufPos = b.position(); bufEnd = b.limit();
+		lowSurrogate = 0;
 		lex = new char[64];
-		line = 1; col = 0;
+		this.line = line; this.col = col - 1; pos = 0;
 		nextCh();
 	}
 
-	private static void readName(Token t) {
-		StringBuilder sb = new StringBuilder();
-		do {
-			sb.append(ch);
-			nextCh();
-		} while (Character.isLetterOrDigit(ch));
-		String name = sb.toString();
+	public void init(byte[] b) {
+		init(ByteBuffer.wrap(b));
+	}
 
-		// Check if the name is a keyword
-		for (int i = 0; i < key.length; i++) {
-			if (name.equals(key[i])) {
-				t.kind = keyVal[i]; // Set the token kind to the corresponding keyword value
-				return;
+	//--------- Initialize scanner with the memory-mapped source file fileName
+	public void init(String fileName) throws IOException {
+		try (FileChannel fc = FileChannel.open(Paths.get(fileName))) {
+			init(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+		}
+	}
+
+	//--------- Return the source text of the bytes buf[off..off+len[
+	static String string(ByteBuffer src, int off, int len) {
+		byte[] b = new byte[len];
+		src.get(off, b);
+		return new String(b, java.nio.charset.StandardCharsets.UTF_8);
+	}
+
+	private static int keyHash(int first, int last, int len) {
+		return (first + last + len) & 31;
+	}
+
+	//--------- Return the keyword code of the name src[off..off+len[, or ident
+	static int keyword(ByteBuffer src, int off, int len) {
+		if (len < 2 || len > 7) return ident;
+		int h = keyHash(src.get(off), src.get(off + len - 1), len);
+		byte[] k = keyTab[h];
+		if (k == null || k.length != len) return ident;
+		for (int i = 0; i < len; i++)
+			if (src.get(off + i) != k[i]) return ident;
+		return keyTabVal[h];
+	}
+
+	//----- skip blanks and line breaks; ASCII blanks are consumed directly from buf
+	private void skipBlanks() {
+		while (ch <= ' ') {
+			int p = bufPos;
+			for (int b; p < bufEnd && (b = buf.get(p)) <= ' ' && b >= 0; p++) {
+				if (b == eol) {line++; col = 0;} else col++;
 			}
+			pos += p - bufPos; bufPos = p;
+			nextCh();
 		}
+	}
 
-		// If not a keyword, it's an identifier
-		t.kind = ident;
-		t.string = name; // Assuming Token has a field to store the string of an identifier
+	//----- return the index of the first eol in buf[p..bufEnd[, or bufEnd
+	private int indexOfEol(int p) {
+		// 8 bytes at a time: the high bit of a byte in z is set iff the byte in buf is eol
+		boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+		for (; p + 8 <= bufEnd; p += 8) {
+			long x = buf.getLong(p) ^ 0x0a0a0a0a0a0a0a0aL;
+			long z = ~(((x & 0x7f7f7f7f7f7f7f7fL) + 0x7f7f7f7f7f7f7f7fL) | x | 0x7f7f7f7f7f7f7f7fL);
+			if (z != 0) return p + ((bigEndian ? Long.numberOfLeadingZeros(z) : Long.numberOfTrailingZeros(z)) >>> 3);
+		}
+		while (p < bufEnd && buf.get(p) != eol) p++;
+		return p;
 	}
 
-	private static void readNumber(Token t) {
-		StringBuilder sb = new StringBuilder();
+	//----- skip a comment up to the end of the line; ch is the first '/' of "//"
+	private void skipComment() {
+		int p = indexOfEol(bufPos);
+		if (p == bufEnd) { // comment ends at eof: decode the rest with nextCh so that col is counted alike
+			while (bufPos < bufEnd || lowSurrogate != 0) nextCh();
+		}
+		pos += p - bufPos; bufPos = p;
+		nextCh();
+	}
+
+	private void readName() {
+		// letters and digits in ASCII are consumed directly from buf
+		for (;;) {
+			int p = bufPos;
+			for (int b; p < bufEnd && (b = buf.get(p)) >= 0 && charClass[b] != 0; p++);
+			col += p - bufPos; pos += p - bufPos; bufPos = p;
+			nextCh();
+			if (ch < 128 || !Character.isLetterOrDigit(ch)) break;
+		}
+		kind = keyword(buf, tokOff, chPos - tokOff);
+		if (kind == ident) tokVal = names.intern(buf, tokOff, chPos - tokOff);
+	}
+
+	private void readNumber() {
+		long val = 0;
 		do {
-			sb.append(ch);
+			if (val <= Integer.MAX_VALUE) val = val * 10 + (ch < 128 ? ch - '0' : Character.digit(ch, 10));
 			nextCh();
-		} while (Character.isDigit(ch));
+		} while (isDigit(ch));
 
-		t.kind = number;
-		try {
-			t.val = Integer.parseInt(sb.toString());
-		} catch (NumberFormatException e) {
-			reportError("Number format error or overflow: " + sb.toString());
-			t.kind = none;
+		kind = number;
+		if (val <= Integer.MAX_VALUE) tokVal = (int)val;
+		else {
+			reportError("Number format error or overflow: " + string(buf, tokOff, chPos - tokOff));
+			kind = none;
 		}
 	}
 
-	private static void readCharCon(Token t) {
+	private void readCharCon() {
 		nextCh(); // Skip the opening single quote
 		if (ch == '\'') {
 			reportError("Empty character constant");
 			nextCh(); // Skip the closing quote and move on
-			t.kind = none; // Set to none or a specific error token
+			kind = none; // Set to none or a specific error token
 		} else {
 			if (ch == '\\') { // Handle escape characters
 				nextCh();
 				switch (ch) {
-					case 'n': t.val = '\n'; break;
-					case 't': t.val = '\t'; break;
-					case 'r': t.val = '\r'; break;
-					case '\'': t.val = '\''; break;
-					case '\\': t.val = '\\'; break;
+					case 'n': tokVal = '\n'; break;
+					case 't': tokVal = '\t'; break;
+					case 'r': tokVal = '\r'; break;
+					case '\'': tokVal = '\''; break;
+					case '\\': tokVal = '\\'; break;
 					default:
 						reportError("Invalid escape character");
 						break;
 				}
 				nextCh(); // Move to the character after the escape sequence
 			} else {
-				t.val = ch;
+				tokVal = ch;
 				nextCh(); // Move to the character after the constant
 			}
 			if (ch != '\'') {
 				reportError("Character constant not properly closed");
-				t.kind = none; // Set to none or a specific error token
+				kind = none; // Set to none or a specific error token
 				// Skip until finding a closing quote or a new line to recover from error
 				while (ch != '\'' && ch != eol && ch != eofCh) nextCh();
 				if (ch == '\'') nextCh(); // Skip the closing quote
 			} else {
 				nextCh(); // Skip the closing single quote
-				t.kind = charCon;
+				kind = charCon;
 			}
 		}
 	}
 
-	private static void reportError(String message) {
-		System.out.println("Error: " + message + " at line " + line + ", col " + col);
+	private void reportError(String message) {
+		diag.error(line, col, message);
 	}
 
-	//---------- Return next input token
-	public static Token next() {
-		while (ch <= ' ') nextCh();
-		Token t = new Token(); // assuming there is a constructor in Token
-		t.line = line;
-		t.col = col;
-
-		if (Character.isLetter(ch)) {
-			readName(t); // to be implemented, for identifying keywords or identifiers
-		} else if (Character.isDigit(ch)) {
-			readNumber(t); // to be implemented, for identifying numeric literals
+	//---------- Scan the next input token into kind, tokLine, tokCol, tokVal, tokOff and tokLen
+	private void scan() {
+		skipBlanks();
+		while (ch == '/' && lowSurrogate == 0 && bufPos < bufEnd && buf.get(bufPos) == '/') { //Check for comments
+			skipComment();
+			skipBlanks();
+		}
+		tokLine = line;
+		tokCol = col;
+		tokVal = 0;
+		tokOff = chPos;
+
+		if (isLetter(ch)) {
+			readName(); // to be implemented, for identifying keywords or identifiers
+		} else if (isDigit(ch)) {
+			readNumber(); // to be implemented, for identifying numeric literals
 		} else if (ch == '\'') {
-			readCharCon(t); // Add this line to handle character constants
+			readCharCon(); // Add this line to handle character constants
 		} else {
 			switch (ch) {
-				case '+': nextCh(); t.kind = plus; break;
-				case '-': nextCh(); t.kind = minus; break;
-				case '*': nextCh(); t.kind = times; break;
-				case '/':
-					nextCh();
-					if (ch == '/') { //Check for comments
-						do nextCh();
-						while (ch != '\n' && ch != eofCh);
-						t = next();  // call scanner recursively
-					} else t.kind = slash;
-					break;
-				case '%': nextCh(); t.kind = rem; break;
+				case '+': nextCh(); kind = plus; break;
+				case '-': nextCh(); kind = minus; break;
+				case '*': nextCh(); kind = times; break;
+				case '/': nextCh(); kind = slash; break;
+				case '%': nextCh(); kind = rem; break;
 				case '=':
 					nextCh();
 					if (ch == '=') { //Check if assignment or equality comparison
 						nextCh();
-						t.kind = eql;
-					} else t.kind = assign;
+						kind = eql;
+					} else kind = assign;
 					break;
-				case ';': nextCh(); t.kind = semicolon; break;
-				case ',': nextCh(); t.kind = comma; break;
-				case '.': nextCh(); t.kind = period; break;
-				case '(': nextCh(); t.kind = lpar; break;
-				case ')': nextCh(); t.kind = rpar; break;
-				case '[': nextCh(); t.kind = lbrack; break;
-				case ']': nextCh(); t.kind = rbrack; break;
-				case '{': nextCh(); t.kind = lbrace; break;
-				case '}': nextCh(); t.kind = rbrace; break;
+				case ';': nextCh(); kind = semicolon; break;
+				case ',': nextCh(); kind = comma; break;
+				case '.': nextCh(); kind = period; break;
+				case '(': nextCh(); kind = lpar; break;
+				case ')': nextCh(); kind = rpar; break;
+				case '[': nextCh(); kind = lbrack; break;
+				case ']': nextCh(); kind = rbrack; break;
+				case '{': nextCh(); kind = lbrace; break;
+				case '}': nextCh(); kind = rbrace; break;
 				case '<':
 					nextCh();
 					if (ch == '='){
 						nextCh();
-						t.kind = leq;
-					} else t.kind = lss;
+						kind = leq;
+					} else kind = lss;
 					break;
 				case '>':
 					nextCh();
 					if (ch == '='){
 						nextCh();
-						t.kind = geq;
-					} else t.kind = gtr;
+						kind = geq;
+					} else kind = gtr;
 					break;
 				case '!':
 					nextCh();
 					if (ch == '='){
 						nextCh();
-						t.kind = neq;
+						kind = neq;
 					} else {
-						t.kind = none;
+						kind = none;
 					}
 					break;
-				case eofCh: t.kind = eof; break;
+				case eofCh: kind = eof; break;
 				default:
 					nextCh();
-					t.kind = none;
+					kind = none;
 					break; // handle invalid character
 			}
 		}
+		tokLen = chPos - tokOff;
+	}
+
+	//---------- Return next input token
+	public Token next() {
+		scan();
+		Token t = new Token();
+		t.kind = kind;
+		t.line = tokLine;
+		t.col = tokCol;
+		t.val = tokVal;
+		if (kind == ident) t.string = names.name(tokVal);
 		return t;
 	}
+
+	//---------- Scan the next tokens into b, replacing its contents.
+	//           Stops when b is full or after the eof token.
+	public void fill(TokenBuffer b) {
+		b.size = 0;
+		b.src = buf;
+		do {
+			scan();
+			b.add(kind, tokLine, tokCol, tokVal, tokOff, tokLen);
+		} while (kind != eof && b.size < b.kind.length);
+	}
+
+	//---------- TokenSource: scan the chunks on the caller's thread
+	public TokenBuffer nextChunk() {
+		if (chunk == null) chunk = new TokenBuffer(1024);
+		fill(chunk);
+		return chunk;
+	}
+
+	public void close() {}
 }
 
 
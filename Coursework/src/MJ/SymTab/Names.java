@@ -0,0 +1,87 @@
+/* MicroJava Name Table
+   ===================
+Every identifier is interned here once and gets a dense number (id) that
+is stored in Token.val / TokenBuffer.val and in Obj.id. Names can thus be
+compared as ints, and all occurrences of a name share one String.
+*/
+package MJ.SymTab;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class Names {
+	private byte[][] spelling = new byte[256][];	// UTF-8 spelling of each name, by id
+	// Only one thread enters names, but a parser on another thread may read
+	// them (see MJ.TokenPipe); the volatile array reference makes the strings
+	// of a grown array visible to it.
+	private volatile String[] name = new String[256];		// each name as a String, by id
+	private int[] table = new int[512];	// hash table of ids + 1 (0 = empty slot)
+	private int size;										// number of names
+
+	// names of the predeclared objects; they get the ids 0, 1, ... in every
+	// name table, so the shared universe (see Tab) fits all of them
+	static final String[] predeclared = {"int", "char", "null", "chr", "ord", "len"};
+
+	public Names() {
+		for (String s : predeclared) intern(s);
+	}
+
+	private static int hash(ByteBuffer src, int off, int len) {
+		int h = 0;
+		for (int i = 0; i < len; i++) h = 31 * h + src.get(off + i);
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean equal(byte[] s, ByteBuffer src, int off, int len) {
+		if (s.length != len) return false;
+		for (int i = 0; i < len; i++)
+			if (s[i] != src.get(off + i)) return false;
+		return true;
+	}
+
+	private void grow() {
+		spelling = java.util.Arrays.copyOf(spelling, 2 * size);
+		name = java.util.Arrays.copyOf(name, 2 * size);
+		table = new int[4 * size];
+		int mask = table.length - 1;
+		for (int id = 0; id < size; id++) {
+			byte[] s = spelling[id];
+			int i = hash(ByteBuffer.wrap(s), 0, s.length) & mask;
+			while (table[i] != 0) i = (i + 1) & mask;
+			table[i] = id + 1;
+		}
+	}
+
+	// Return the id of the name src[off..off+len[, entering it if it is new
+	public int intern(ByteBuffer src, int off, int len) {
+		int mask = table.length - 1;
+		int i = hash(src, off, len) & mask;
+		for (int e = table[i]; e != 0; e = table[i]) {
+			if (equal(spelling[e - 1], src, off, len)) return e - 1;
+			i = (i + 1) & mask;
+		}
+		int id = size++;
+		byte[] s = new byte[len];
+		src.get(off, s);
+		spelling[id] = s;
+		name[id] = new String(s, StandardCharsets.UTF_8);
+		table[i] = id + 1;
+		if (size == spelling.length) grow();
+		return id;
+	}
+
+	public int intern(String s) {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		return intern(ByteBuffer.wrap(b), 0, b.length);
+	}
+
+	// Return the name with the given id
+	public String name(int id) {
+		return name[id];
+	}
+
+	// Number of names entered so far; all ids are smaller
+	public int size() {
+		return size;
+	}
+}
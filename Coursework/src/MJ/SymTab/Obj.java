@@ -14,6 +14,7 @@ public class Obj {
 		Prog = 4;
 	public int    kind;		// Con, Var, Type, Meth, Prog
 	public String name;		// object name
+	public int    id;			// number of the name in Names
 	public Struct type;	 	// object type
 	public int    val;    // Con: value
 	public int    adr;    // Var, Math: address
@@ -21,8 +22,14 @@ public class Obj {
 	public int    nPars;  // Meth: number of parameters
 	public Obj    locals; // Meth: parameters and local objects
 	public Obj    next;		// next local object in this scope
+	Obj           hidden;	// object with the same name in an enclosing scope (see Tab.visible)
+	int           scopeLevel;	// nesting level of the scope this object was declared in
+
+	public Obj(int kind, int id, String name, Struct type) {
+		this.kind = kind; this.id = id; this.name = name; this.type = type;
+	}
 
 	public Obj(int kind, String name, Struct type) {
-		this.kind = kind; this.name = name; this.type = type;
+		this(kind, -1, name, type);
 	}
 }
\ No newline at end of file
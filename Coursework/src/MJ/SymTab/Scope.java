@@ -7,4 +7,5 @@ public class Scope {
 	public Scope outer;		// to outer scope
 	public Obj   locals;	// to local variables of this scope
 	public int   nVars;     // number of variables in this scope
+	Obj          last;			// last object in locals
 }
\ No newline at end of file
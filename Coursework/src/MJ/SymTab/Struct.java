@@ -15,38 +15,44 @@ public class Struct {
 	public Struct elemType; // Arr: element type
 	public int    nFields;  // Class: number of fields
 	public Obj    fields;   // Class: fields
+	Obj[]         fieldIndex;	// Class: fields hashed by name id (built by Tab.findField)
+	private Struct arrType;	// the array type with this element type (see arrayType)
 
 	public Struct(int kind) {
 		this.kind = kind;
 	}
 
-	public Struct(int kind, Struct elemType) {
+	private Struct(int kind, Struct elemType) {
 		this.kind = kind; this.elemType = elemType;
 	}
 
+	// Returns the array type with element type "this".
+	// There is only one such type, so types can be compared by reference.
+	public Struct arrayType() {
+		if (arrType == null) arrType = new Struct(Arr, this);
+		return arrType;
+	}
+
 	// Checks if this is a reference type
 	public boolean isRefType() {
 		return kind == Class || kind == Arr;
 	}
 
-	// Checks if two types are equal
+	// Checks if two types are equal (array types are unique per element type)
 	public boolean equals(Struct other) {
-		if (kind == Arr)
-			return other.kind == Arr && other.elemType == elemType;
-		else
-			return other == this;
+		return other == this;
 	}
 
 	// Checks if two types are compatible (e.g. in a comparison)
 	public boolean compatibleWith(Struct other) {
-		return this.equals(other)
+		return this == other
 			||	this == Tab.nullType && other.isRefType()
 			||	other == Tab.nullType && this.isRefType();
 	}
 
 	// Checks if an object with type "this" can be assigned to an object with type "dest"
 	public boolean assignableTo(Struct dest) {
-		return this.equals(dest)
+		return this == dest
 			||	this == Tab.nullType && dest.isRefType()
 			||  this.kind == Arr && dest.kind == Arr && dest.elemType == Tab.noType;
 	}
@@ -4,92 +4,188 @@ This class manages scopes and inserts and retrieves objects.
 */
 package MJ.SymTab;
 
+import java.io.PrintWriter;
 import java.lang.*;
 import MJ.*;
 
 public class Tab {
-	public static Scope curScope;	// current scope
-	public static int curLevel;	// nesting level of current scope
+	public Scope curScope;	// current scope
+	public int curLevel;	// nesting level of current scope
+
+	// predefined types (shared by all compilations)
+	public static final Struct intType  = new Struct(Struct.Int);
+	public static final Struct charType = new Struct(Struct.Char);
+	public static final Struct nullType = new Struct(Struct.Class);
+	public static final Struct noType   = new Struct(Struct.None);
+	// the universe with the predeclared objects (shared by all compilations;
+	// a program scope is opened on top of it and the objects are never changed)
+	public static final Scope universe = new Scope();
+	public static final Obj chrObj;		// predefined objects
+	public static final Obj ordObj;
+	public static final Obj lenObj;
+	public static final Obj noObj = new Obj(Obj.Var, "???", noType);
+
+	// innermost visible object for each name id; objects with the same name in
+	// enclosing scopes are reachable via Obj.hidden
+	private Obj[] visible;
+
+	private final Compilation comp;
+	private final Names names;
+
+	static {
+		// create the array types of the shared types up front, so that
+		// concurrent compilations never race on Struct.arrayType
+		intType.arrayType(); charType.arrayType(); noType.arrayType();
+
+		// create predeclared objects; their names have the same ids in all
+		// name tables (see Names.predeclared)
+		predeclare(Obj.Type, intType);
+		predeclare(Obj.Type, charType);
+		predeclare(Obj.Con, nullType);
+		chrObj = predeclare(Obj.Meth, charType);
+		chrObj.locals = new Obj(Obj.Var, "i", intType);
+		chrObj.nPars = 1;
+		ordObj = predeclare(Obj.Meth, intType);
+		ordObj.locals = new Obj(Obj.Var, "ch", charType);
+		ordObj.nPars = 1;
+		lenObj = predeclare(Obj.Meth, intType);
+		lenObj.locals = new Obj(Obj.Var, "a", noType.arrayType());
+		lenObj.nPars = 1;
+	}
 
-	public static Struct intType;	// predefined types
-	public static Struct charType;
-	public static Struct nullType;
-	public static Struct noType;
-	public static Obj chrObj;		// predefined objects
-	public static Obj ordObj;
-	public static Obj lenObj;
-	public static Obj noObj;
+	// Append the next predeclared object to the universe
+	private static Obj predeclare(int kind, Struct type) {
+		int id = universe.last == null ? 0 : universe.last.id + 1;
+		Obj obj = new Obj(kind, id, Names.predeclared[id], type);
+		obj.scopeLevel = -1;
+		if (universe.last == null) universe.locals = obj; else universe.last.next = obj;
+		universe.last = obj;
+		return obj;
+	}
 
-	private static void error(String msg) {
-		Parser.error(msg);
+	public Tab(Compilation c) {
+		comp = c; names = c.names;
+	}
+
+	private void error(String msg) {
+		comp.parser.error(msg);
 	}
 
 	//------------------ scope management ---------------------
 
-	public static void openScope() {
+	public void openScope() {
 		Scope s = new Scope();
 		s.outer = curScope;
 		curScope = s;
 		curLevel++;
 	}
 
-	public static void closeScope() {
+	public void closeScope() {
+		for (Obj p = curScope.locals; p != null; p = p.next)
+			if (visible[p.id] == p) visible[p.id] = p.hidden;
 		curScope = curScope.outer;
 		curLevel--;
 	}
 
+	// Reopen the scope s of an earlier parse with the objects up to and
+	// including mark visible (all of them if mark is null). The objects
+	// after mark are removed from s and returned.
+	public Obj reopenScope(Scope s, Obj mark) {
+		curScope = s;
+		curLevel++;
+		Obj rest = mark == null ? s.locals : mark.next;
+		for (Obj p = s.locals; p != rest; p = p.next) {
+			if (p.id >= visible.length) visible = java.util.Arrays.copyOf(visible, Math.max(2 * visible.length, names.size()));
+			if (visible[p.id] == null || visible[p.id].scopeLevel != curLevel) {
+				p.hidden = visible[p.id];
+				visible[p.id] = p;
+			}
+		}
+		if (mark == null) s.locals = null; else mark.next = null;
+		s.last = mark;
+		return rest;
+	}
+
+	// Append the objects rest that reopenScope removed to the top scope again
+	public void restoreScope(Obj rest) {
+		if (rest == null) return;
+		if (curScope.last == null) curScope.locals = rest; else curScope.last.next = rest;
+		while (rest.next != null) rest = rest.next;
+		curScope.last = rest;
+	}
+
+	// The most recently declared object of the top scope
+	public Obj lastObj() {
+		return curScope.last;
+	}
+
 	//------------- Object insertion and retrieval --------------
 
 	// Create a new object with the given kind, name and type
 	// and insert it into the top scope.
-	public static Obj insert(int kind, String name, Struct type) {
-		Obj obj = new Obj(kind, name, type);
+	public Obj insert(int kind, int id, Struct type) {
+		Obj obj = new Obj(kind, id, names.name(id), type);
 		if (kind == Obj.Var) {
 			obj.adr = curScope.nVars;
 			curScope.nVars++;
 			obj.level = curLevel;
 		}
-		Obj p = curScope.locals, last = null;
-		while (p != null) {
-			if (p.name.equals(name)) {
-				error(name + " declared twice");
-			}
-			last = p;
-			p = p.next;
+		obj.scopeLevel = curLevel;
+		if (id >= visible.length) visible = java.util.Arrays.copyOf(visible, Math.max(2 * visible.length, names.size()));
+		Obj p = visible[id];
+		if (p != null && p.scopeLevel == curLevel) {
+			error(obj.name + " declared twice");
+		} else {
+			obj.hidden = p;
+			visible[id] = obj;
 		}
-		if (last == null) {
+		if (curScope.last == null) {
 			curScope.locals = obj;
 		} else {
-			last.next = obj;
+			curScope.last.next = obj;
 		}
+		curScope.last = obj;
 		return obj;
 	}
 
-	// Retrieve the object with the given name from the top scope
-	public static Obj find(String name) {
-		for (Scope s = curScope; s != null; s = s.outer){
-			for (Obj p = s.locals; p != null; p = p.next){
-				if (p.name.equals(name)) return p;
-			}
-		}
-		error(name + " is undeclared");
+	// Retrieve the object with the given name id from the top scope
+	public Obj find(int id) {
+		if (id < visible.length && visible[id] != null) return visible[id];
+		error(names.name(id) + " is undeclared");
 		return noObj;
 	}
 
-	// Retrieve a class field with the given name from the fields of "type"
-	public static Obj findField(String name, Struct type) {
-		for (Obj field = type.fields; field != null; field = field.next) {
-			if (field.name.equals(name)) {
-				return field;
+	// Retrieve a class field with the given name id from the fields of "type"
+	public Obj findField(int id, Struct type) {
+		Obj[] index = type.fieldIndex;
+		if (index == null) index = type.fieldIndex = fieldIndex(type.fields);
+		int mask = index.length - 1;
+		for (int i = id & mask; index[i] != null; i = (i + 1) & mask) {
+			if (index[i].id == id) {
+				return index[i];
 			}
 		}
-		error("Error: Field not found - " + name);
+		error("Error: Field not found - " + names.name(id));
 		return noObj;
 	}
 
+	// Build a hash table of the fields by name id (open addressing, first declaration wins)
+	private static Obj[] fieldIndex(Obj fields) {
+		int n = 0;
+		for (Obj f = fields; f != null; f = f.next) n++;
+		Obj[] index = new Obj[Integer.highestOneBit(2 * n + 1) * 2];
+		int mask = index.length - 1;
+		for (Obj f = fields; f != null; f = f.next) {
+			int i = f.id & mask;
+			while (index[i] != null && index[i].id != f.id) i = (i + 1) & mask;
+			if (index[i] == null) index[i] = f;
+		}
+		return index;
+	}
+
 	//---------------- methods for dumping the symbol table --------------
 
-	public static void dumpStruct(Struct type) {
+	public static void dumpStruct(Struct type, PrintWriter out) {
 		String kind;
 		switch (type.kind) {
 			case Struct.Int:  kind = "Int  "; break;
@@ -98,20 +194,20 @@ public class Tab {
 			case Struct.Class:kind = "Class"; break;
 			default: kind = "None";
 		}
-		System.out.print(kind+" ");
+		out.print(kind+" ");
 		if (type.kind == Struct.Arr) {
-			System.out.print(type.nFields + " (");
-			dumpStruct(type.elemType);
-			System.out.print(")");
+			out.print(type.nFields + " (");
+			dumpStruct(type.elemType, out);
+			out.print(")");
 		}
 		if (type.kind == Struct.Class) {
-			System.out.println(type.nFields + "<<");
-			for (Obj o = type.fields; o != null; o = o.next) dumpObj(o);
-			System.out.print(">>");
+			out.println(type.nFields + "<<");
+			for (Obj o = type.fields; o != null; o = o.next) dumpObj(o, out);
+			out.print(">>");
 		}
 	}
 
-	public static void dumpObj(Obj o) {
+	public static void dumpObj(Obj o, PrintWriter out) {
 		String kind;
 		switch (o.kind) {
 			case Obj.Con:  kind = "Con "; break;
@@ -120,46 +216,25 @@ public class Tab {
 			case Obj.Meth: kind = "Meth"; break;
 			default: kind = "None";
 		}
-		System.out.print(kind+" "+o.name+" "+o.val+" "+o.adr+" "+o.level+" "+o.nPars+" (");
-		dumpStruct(o.type);
-		System.out.println(")");
+		out.print(kind+" "+o.name+" "+o.val+" "+o.adr+" "+o.level+" "+o.nPars+" (");
+		dumpStruct(o.type, out);
+		out.println(")");
 	}
 
-	public static void dumpScope(Obj head) {
-		System.out.println("--------------");
-		for (Obj o = head; o != null; o = o.next) dumpObj(o);
+	public static void dumpScope(Obj head, PrintWriter out) {
+		out.println("--------------");
+		for (Obj o = head; o != null; o = o.next) dumpObj(o, out);
 		for (Obj o = head; o != null; o = o.next)
-			if (o.kind == Obj.Meth || o.kind == Obj.Prog) dumpScope(o.locals);
+			if (o.kind == Obj.Meth || o.kind == Obj.Prog) dumpScope(o.locals, out);
 	}
 
 	//-------------- initialization of the symbol table ------------
 
-	public static void init() {  // build the universe
-		Obj o;
-		curScope = new Scope();
-		curScope.outer = null;
+	public void init() {  // start with the universe
+		curScope = universe;
 		curLevel = -1;
-
-		// create predeclared types
-		intType = new Struct(Struct.Int);
-		charType = new Struct(Struct.Char);
-		nullType = new Struct(Struct.Class);
-		noType = new Struct(Struct.None);
-		noObj = new Obj(Obj.Var, "???", noType);
-
-		// create predeclared objects
-		insert(Obj.Type, "int", intType);
-		insert(Obj.Type, "char", charType);
-		insert(Obj.Con, "null", nullType);
-		chrObj = insert(Obj.Meth, "chr", charType);
-		chrObj.locals = new Obj(Obj.Var, "i", intType);
-		chrObj.nPars = 1;
-		ordObj = insert(Obj.Meth, "ord", intType);
-		ordObj.locals = new Obj(Obj.Var, "ch", charType);
-		ordObj.nPars = 1;
-		lenObj = insert(Obj.Meth, "len", intType);
-		lenObj.locals = new Obj(Obj.Var, "a", new Struct(Struct.Arr, noType));
-		lenObj.nPars = 1;
+		visible = new Obj[Math.max(64, names.size())];
+		for (Obj o = universe.locals; o != null; o = o.next) visible[o.id] = o;
 	}
 }
 
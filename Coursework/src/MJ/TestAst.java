@@ -0,0 +1,140 @@
+/* MicroJava Syntax Tree Tester
+   ============================
+   Place this file in a subdirectory MJ
+   Compile with
+     javac MJ\TestAst.java
+   Run with
+     java MJ.TestAst <inputFileName> [-dump]
+   Parses a correct program twice into the same Ast (see Parser.ast) and
+   checks that
+   - both parses give the same number of nodes and the same tree,
+   - every node is reached exactly once from the root,
+   - BinOp, Cond, Assign, Call, Field and Index nodes have the children
+     that Ast describes (e.g. Assign: designator and expression),
+   - reset() removes all nodes and clears their objects.
+   With -dump the tree is printed.
+*/
+package MJ;
+
+import java.io.*;
+import MJ.CodeGen.Code;
+import MJ.SymTab.Obj;
+
+public class TestAst {
+	private static Ast ast;
+	private static int bad;
+	private static int[] count = new int[Ast.NewArray + 1];	// nodes per kind
+
+	private static void error(int x, String msg) {
+		if (bad++ < 20) System.out.println("-- node " + x + " (kind " + ast.kind[x] + ", token " + ast.token[x] + "): " + msg);
+	}
+
+	private static boolean isDesignator(int x) {
+		int k = ast.kind[x];
+		return k == Ast.Ident || k == Ast.Field || k == Ast.Index;
+	}
+
+	private static boolean isExpr(int x) {
+		int k = ast.kind[x];
+		return isDesignator(x) || k == Ast.BinOp || k == Ast.Neg || k == Ast.Number || k == Ast.CharCon
+			|| k == Ast.Call || k == Ast.New || k == Ast.NewArray;
+	}
+
+	private static int children(int x) {
+		int n = 0;
+		for (int c = ast.child[x]; c != 0; c = ast.next[c]) n++;
+		return n;
+	}
+
+	// Check the subtree of node x; returns its number of nodes
+	private static int check(int x, boolean[] seen) {
+		if (x <= 0 || x >= ast.size) {error(x, "not a node"); return 0;}
+		if (seen[x]) {error(x, "reached twice"); return 0;}
+		seen[x] = true;
+		count[ast.kind[x]]++;
+		int a = ast.child[x], b = a == 0 ? 0 : ast.next[a];
+		switch (ast.kind[x]) {
+			case Ast.BinOp:
+				if (children(x) != 2 || !isExpr(a) || !isExpr(b)) error(x, "BinOp needs two expressions");
+				if (ast.val[x] < Code.add || ast.val[x] > Code.rem) error(x, "BinOp with opcode " + ast.val[x]);
+				break;
+			case Ast.Cond:
+				if (children(x) != 2 || !isExpr(a) || !isExpr(b)) error(x, "Cond needs two expressions");
+				if (ast.val[x] < Code.eq || ast.val[x] > Code.ge) error(x, "Cond with operator " + ast.val[x]);
+				break;
+			case Ast.Assign:
+				if (children(x) != 2 || !isDesignator(a) || !isExpr(b)) error(x, "Assign needs a designator and an expression");
+				break;
+			case Ast.Call:
+				Obj m = ast.obj[x];
+				if (m == null || m.kind != Obj.Meth) error(x, "Call without a method");
+				else if (a == 0 || !isDesignator(a) || children(x) != 1 + m.nPars) error(x, "Call needs a designator and " + m.nPars + " parameters");
+				else for (int c = b; c != 0; c = ast.next[c]) if (!isExpr(c)) error(c, "parameter is no expression");
+				break;
+			case Ast.Field:
+				if (children(x) != 1 || !isDesignator(a)) error(x, "Field needs a designator");
+				if (ast.obj[x] == null || ast.obj[x].kind != Obj.Var) error(x, "Field without a field");
+				break;
+			case Ast.Index:
+				if (children(x) != 2 || !isDesignator(a) || !isExpr(b)) error(x, "Index needs a designator and an expression");
+				break;
+		}
+		int n = 1;
+		for (int c = a; c != 0; c = ast.next[c]) n += check(c, seen);
+		return n;
+	}
+
+	// The tree as text
+	private static String dump() {
+		StringWriter s = new StringWriter();
+		PrintWriter out = new PrintWriter(s);
+		ast.dump(1, out);
+		out.flush();
+		return s.toString();
+	}
+
+	// Main method of the syntax tree tester
+	public static void main(String args[]) {
+		if (args.length == 0) {
+			System.out.println("-- synopsis: java MJ.TestAst <inputfileName> [-dump]");
+			return;
+		}
+		String source = args[0];
+		ast = new Ast(16);	// small, so that the arena has to grow
+		String[] tree = new String[2];
+		int[] size = new int[2];
+		for (int i = 0; i < 2; i++) {
+			try {
+				Compilation c = new Compilation(new Diagnostics());
+				c.parser.ast = ast;
+				if (c.compile(source) > 0) {
+					System.out.println("-- " + source + " must be a correct program");
+					return;
+				}
+			} catch (IOException e) {
+				System.out.println("-- cannot open input file " + source);
+				return;
+			}
+			size[i] = ast.size; tree[i] = dump();
+		}
+		if (size[0] != size[1] || !tree[0].equals(tree[1])) {
+			bad++;
+			System.out.println("-- the second parse gave another tree (" + (size[1] - 1) + " instead of " + (size[0] - 1) + " nodes)");
+		}
+		if (ast.kind[1] != Ast.Program) error(1, "the root is not a Program");
+		int n = check(1, new boolean[ast.size]);
+		if (n != ast.size - 1) {
+			bad++;
+			System.out.println("-- " + n + " of " + (ast.size - 1) + " nodes are in the tree");
+		}
+		if (args.length > 1 && args[1].equals("-dump")) System.out.print(tree[1]);
+		int used = ast.size;
+		ast.reset();
+		for (int x = 0; x < used; x++)
+			if (ast.obj[x] != null) {bad++; System.out.println("-- reset() keeps the object of node " + x); break;}
+		if (ast.size != 1) {bad++; System.out.println("-- reset() keeps " + (ast.size - 1) + " nodes");}
+		System.out.println((used - 1) + " nodes (" + count[Ast.Assign] + " Assign, " + count[Ast.BinOp] + " BinOp, "
+			+ count[Ast.Call] + " Call, " + count[Ast.Field] + " Field, " + count[Ast.Index] + " Index), " + bad + " errors");
+	}
+
+}
@@ -0,0 +1,202 @@
+/* MicroJava Incremental Compilation Tester
+   =======================================
+   Place this file in a subdirectory MJ
+   Compile with
+     javac MJ\TestIncremental.java
+   Run with
+     java MJ.TestIncremental [<inputFileName> [<edits>]]
+   Every edit is compiled incrementally (see IncrementalCompilation) and the
+   result is compared with a full compilation of the edited text: the error
+   count, and the object code byte for byte if there are no errors. First
+   some fixed edit sequences are checked, then random edits of the input
+   file, which must be a correct program: a method is chosen and edited
+   several times in a row.
+*/
+package MJ;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+
+public class TestIncremental {
+	private static final int  // token codes
+		number    = 2,
+		semicolon = 16,
+		lbrace    = 23,
+		rbrace    = 24,
+		else_     = 26;
+
+	private static int edits, reparsed, correct, bad;
+
+	// A program and edits of it: each edit replaces the first occurrence of
+	// a string by another one
+	private static final String[][] sequences = {
+		{	// f becomes inlinable after an earlier edit of it
+			"program A\n{\n"
+			+ "\tint f(int x)\n\t{\n"
+			+ "\t\tx = x + 1; x = x + 1; x = x + 1; x = x + 1; x = x + 1; x = x + 1; x = x + 1;\n"
+			+ "\t\treturn x;\n\t}\n"
+			+ "\tvoid main()\n\t{\n\t\tprint(f(3));\n\t}\n}\n",
+			"x = x + 1; x = x + 1; x = x + 1; x = x + 1; x = x + 1; x = x + 1; x = x + 1;",
+			"x = x + 1; x = x + 1; x = x + 1; x = x + 1; x = x + 1; x = x + 1; x = x + 2;",
+			"x = x + 1; x = x + 1; x = x + 1; x = x + 1; x = x + 1; x = x + 1; x = x + 2;",
+			"x = x + 3;"
+		},
+		{	// f writes o.a after an earlier edit of it, so len(o.a) in the loop
+			// of main must no longer be computed before the loop
+			"program B\n\tclass O { int[] a; }\n\tO o;\n{\n"
+			+ "\tvoid f(int k)\n\t{\n"
+			+ "\t\tk = k + 1; k = k + 1; k = k + 1; k = k + 1; k = k + 1; k = k + 1; k = k + 1;\n"
+			+ "\t}\n"
+			+ "\tvoid main()\n\t\tint i, s;\n\t{\n"
+			+ "\t\to = new O; o.a = new int[3];\n"
+			+ "\t\ti = 0; s = 0;\n"
+			+ "\t\twhile (i < 5) {\n\t\t\ts = s + len(o.a);\n\t\t\tf(i);\n\t\t\ti = i + 1;\n\t\t}\n"
+			+ "\t\tprint(s);\n\t}\n}\n",
+			"k = k + 1; k = k + 1; k = k + 1; k = k + 1; k = k + 1; k = k + 1; k = k + 1;",
+			"k = k + 2; k = k + 1; k = k + 1; k = k + 1; k = k + 1; k = k + 1; k = k + 1;",
+			"k = k + 2;",
+			"o.a = new int[k];"
+		},
+		{	// f becomes recursive, so its loop calls a method that may write o.a
+			"program C\n\tclass O { int[] a; }\n\tO o;\n{\n"
+			+ "\tvoid f(int k)\n\t\tint i, s;\n\t{\n"
+			+ "\t\ti = 0; s = 0;\n"
+			+ "\t\twhile (i < k) {\n\t\t\ts = s + len(o.a);\n\t\t\ti = i + 1;\n\t\t}\n"
+			+ "\t\tprint(s);\n\t}\n"
+			+ "\tvoid main()\n\t{\n\t\to = new O; o.a = new int[3];\n\t\tf(3);\n\t}\n}\n",
+			"i = i + 1;",
+			"i = i + 1; if (k > 0) f(k - 1);"
+		},
+		{	// f becomes recursive while its old code could be inlined, so its
+			// call must not be replaced by the old code, neither in f nor in main
+			"program D\n{\n"
+			+ "\tint f(int x)\n\t{\n\t\treturn x + 1;\n\t}\n"
+			+ "\tvoid main()\n\t{\n\t\tprint(5);\n\t}\n}\n",
+			"return x + 1;",
+			"if (x > 0) return f(x - 1); return 0;",
+			"print(5);",
+			"print(f(5));",
+			"if (x > 0) return f(x - 1); return 0;",
+			"return x + 2;"
+		}
+	};
+
+	private static byte[] code(Compilation c) {
+		ByteArrayOutputStream s = new ByteArrayOutputStream();
+		c.write(s);
+		return s.toByteArray();
+	}
+
+	// Apply the edit to ic and compare the result with a full compilation of text
+	private static String edit(IncrementalCompilation ic, String text, int pos, int n, String s, String name) {
+		int errors = ic.edit(pos, n, s);
+		text = text.substring(0, pos) + s + text.substring(pos + n);
+		Compilation c = new Compilation(new Diagnostics());
+		int fullErrors = c.compile(ByteBuffer.wrap(text.getBytes()));
+		edits++;
+		if (ic.reparsed >= 0) reparsed++;
+		if (fullErrors == 0) correct++;
+		byte[] x = code(ic.comp), y = code(c);
+		if (errors != fullErrors || errors == 0 && !Arrays.equals(x, y)) {
+			bad++;
+			System.out.println("-- " + name + ": " + errors + "/" + fullErrors + " errors, "
+				+ x.length + "/" + y.length + " bytes after replacing " + n + " bytes at " + pos + " by \"" + s + "\"");
+		}
+		return text;
+	}
+
+	private static void sequences() {
+		for (int k = 0; k < sequences.length; k++) {
+			String[] seq = sequences[k];
+			String text = seq[0];
+			IncrementalCompilation ic = new IncrementalCompilation(new Diagnostics());
+			ic.init(text);
+			for (int i = 1; i + 1 < seq.length; i += 2) {
+				int pos = text.indexOf(seq[i]);
+				text = edit(ic, text, pos, seq[i].length(), seq[i + 1], "sequence " + k);
+			}
+		}
+	}
+
+	// The statement that starts at token i or after it, as tokens i..e with
+	// e = result; a statement starts after ";", "{" or "}" and is one without
+	// braces that ends with ";". Returns -1 if there is none before token end.
+	private static int statement(IncrementalScanner sc, int[] i, int end) {
+		for (; i[0] < end; i[0]++) {
+			int s = i[0], prev = sc.kind(s - 1);
+			if (prev != semicolon && prev != lbrace && prev != rbrace) continue;
+			int e = s;
+			while (e < end && sc.kind(e) != semicolon && sc.kind(e) != lbrace
+					&& sc.kind(e) != rbrace && sc.kind(e) != else_) e++;
+			if (e < end && e > s && sc.kind(e) == semicolon) return e;
+		}
+		return -1;
+	}
+
+	// Edit random methods of the program n times. Most edits keep the program
+	// correct: a number is changed, or a statement is duplicated or removed.
+	// The other edits remove or copy a few tokens and are undone right away.
+	private static void random(String program, int n) {
+		Random rnd = new Random(1);
+		IncrementalCompilation ic = new IncrementalCompilation(new Diagnostics());
+		IncrementalScanner sc = ic.scanner;
+		String text = program;
+		if (ic.init(text) > 0 || ic.comp.parser.methods.isEmpty()) {
+			System.out.println("-- the input file must be a correct program with methods");
+			return;
+		}
+		int m = 0, k = 0;	// method m is edited k more times
+		while (n > 0) {
+			List<MethodSpan> methods = ic.comp.parser.methods;
+			if (k == 0) {m = rnd.nextInt(methods.size()); k = 1 + rnd.nextInt(4);}
+			MethodSpan span = methods.get(m);
+			int body = span.body;	// the "{" of the method's block
+			while (sc.kind(body) != lbrace) body++;
+			int end = span.end - 1;	// its "}"
+			int[] from = {body + 1 + rnd.nextInt(end - body)};
+			int e, x = rnd.nextInt(8);
+			if (x < 2) {	// change a number
+				while (from[0] < end && sc.kind(from[0]) != number) from[0]++;
+				if (from[0] == end) continue;
+				text = edit(ic, text, sc.off(from[0]), sc.len(from[0]), String.valueOf(rnd.nextInt(10)), "edit " + edits);
+			} else if (x < 7) {	// duplicate or remove a statement
+				if ((e = statement(sc, from, end)) < 0) continue;
+				int pos = sc.off(from[0]), len = sc.off(e) + 1 - pos;
+				if (x < 5) text = edit(ic, text, pos + len, 0, " " + text.substring(pos, pos + len), "edit " + edits);
+				else text = edit(ic, text, pos, len, "", "edit " + edits);
+			} else {	// remove or copy tokens, and undo it
+				int to = Math.min(from[0] + 1 + rnd.nextInt(3), end);
+				int pos = sc.off(from[0]), len = sc.off(to) - pos;
+				String t = text.substring(pos, pos + len);
+				if (rnd.nextBoolean()) {
+					text = edit(ic, text, pos, len, "", "edit " + edits);
+					text = edit(ic, text, pos, 0, t, "edit " + edits);
+				} else {
+					int at = sc.off(body + 1 + rnd.nextInt(end - body));
+					text = edit(ic, text, at, 0, t + " ", "edit " + edits);
+					text = edit(ic, text, at, len + 1, "", "edit " + edits);
+				}
+			}
+			n--; k--;
+		}
+	}
+
+	// Main method of the incremental compilation tester
+	public static void main(String args[]) {
+		sequences();
+		if (args.length > 0) {
+			String source = args[0];
+			try {
+				String text = new String(Files.readAllBytes(Paths.get(source)));
+				random(text, args.length > 1 ? Integer.parseInt(args[1]) : 1000);
+			} catch (IOException e) {
+				System.out.println("-- cannot open input file " + source);
+			}
+		}
+		System.out.println(edits + " edits (" + correct + " without errors), " + reparsed + " compiled incrementally, "
+			+ bad + " differ from a full compilation");
+	}
+
+}
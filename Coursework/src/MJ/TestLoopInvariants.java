@@ -0,0 +1,67 @@
+/* MicroJava Loop Invariant Tester
+   ===============================
+   Place this file in a subdirectory MJ
+   Compile with
+     javac MJ\TestLoopInvariants.java
+   Run with
+     java MJ.TestLoopInvariants
+   Compiles small programs with one while loop in main and counts the
+   getstatic, getfield and arraylength instructions that are left in the
+   loop, i.e. between the target of its backward jump and the jump. The
+   counts must be those given with each program (see CodeGen.LoopInvariants).
+*/
+package MJ;
+
+import java.nio.ByteBuffer;
+import MJ.CodeGen.Code;
+
+public class TestLoopInvariants {
+
+	// Declarations and the statements of main; the loads left in the loop
+	private static final Object[][] cases = {
+		{"int[] a;", "while (i < len(a)) i = i + 1;", 0},
+		{"O o;", "while (i < len(o.a)) i = i + 1;", 0},
+		{"O o;", "while (i < 10) {s = s + len(o.a); i = i + 1;}", 0},
+		{"int[] a;", "while (i < len(a)) {a = new int[3]; i = i + 1;}", 2},	// a is written
+		{"O o;", "while (i < len(o.a)) {o.a = new int[3]; i = i + 1;}", 4},
+		{"int[] a;", "while (i < len(a)) {a[i] = i; i = i + 1;}", 1},	// a[i] before len(a), but the guard dereferences a
+		{"int[] a;", "while (i < 10) {print(i); s = s + len(a); i = i + 1;}", 2},	// len(a) after print
+		{"int[] a;", "while (i < len(a)) {print(i); s = s + len(a); i = i + 1;}", 0}	// print before len(a), but the guard dereferences a
+	};
+
+	// The number of loads between the target of the last backward jump and the jump
+	private static int loads(byte[] b) {
+		int from = -1, to = -1;
+		for (int p = 0; p < b.length; p += Code.size(b[p] & 0xff)) {
+			int op = b[p] & 0xff;
+			if (op >= Code.jmp && op <= Code.jge) {
+				int t = (b[p + 1] & 0xff) << 8 | b[p + 2] & 0xff;
+				if (t <= p) {from = t; to = p;}
+			}
+		}
+		int n = 0;
+		for (int p = from; p >= 0 && p < to; p += Code.size(b[p] & 0xff)) {
+			int op = b[p] & 0xff;
+			if (op == Code.getstatic || op == Code.getfield || op == Code.arraylength) n++;
+		}
+		return n;
+	}
+
+	// Main method of the loop invariant tester
+	public static void main(String args[]) {
+		int bad = 0;
+		for (Object[] c : cases) {
+			String src = "program P class O { int[] a; } " + c[0] + " { void main() int i, s; { "
+				+ "i = 0; s = 0; " + c[1] + " print(s); } }";
+			Compilation comp = new Compilation(new Diagnostics());
+			int errors = comp.compile(ByteBuffer.wrap(src.getBytes()));
+			int n = errors > 0 ? -1 : loads(comp.code.copy(0, comp.code.pc));
+			if (n != (Integer)c[2]) {
+				bad++;
+				System.out.println("-- " + c[1] + ": " + (errors > 0 ? errors + " errors" : n + " loads in the loop instead of " + c[2]));
+			}
+		}
+		System.out.println(cases.length + " loops, " + bad + " with other loads");
+	}
+
+}
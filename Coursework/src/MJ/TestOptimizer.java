@@ -0,0 +1,115 @@
+/* MicroJava Optimizer Tester
+   ==========================
+   Place this file in a subdirectory MJ
+   Compile with
+     javac MJ\TestOptimizer.java
+   Run with
+     java MJ.TestOptimizer {<inputFileName>}
+   Compiles every program with and without the code optimizations (-noopt)
+   and runs both object files with MJ.Run. The program reads its input
+   from <name>.in if that file exists. The two outputs must be the same,
+   apart from the run time and the code address of an exception. If there
+   is a file <name>.out, the output must also be the same as in that file.
+*/
+package MJ;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+public class TestOptimizer {
+	private static final int timeout = 10;	// seconds per run
+
+	// Compile source into obj; returns false if there are errors
+	private static boolean compile(String source, String obj, boolean optimize) throws IOException {
+		Compilation c = new Compilation(new Diagnostics());
+		c.optimize = optimize;
+		if (c.compile(source) > 0) return false;
+		OutputStream s = new FileOutputStream(obj);
+		c.write(s);
+		s.close();
+		return true;
+	}
+
+	// Run obj with MJ.Run in its own VM, since Run is all static and
+	// uses System.in and System.out
+	private static String run(String obj, File in) throws IOException, InterruptedException {
+		File out = File.createTempFile("mjtest", ".txt");
+		try {
+			ProcessBuilder pb = new ProcessBuilder(
+				Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+				"-cp", System.getProperty("java.class.path"), "MJ.Run", obj);
+			if (in.exists()) pb.redirectInput(in);
+			pb.redirectErrorStream(true).redirectOutput(out);
+			Process p = pb.start();
+			if (!in.exists()) p.getOutputStream().close();
+			if (!p.waitFor(timeout, TimeUnit.SECONDS)) {
+				p.destroyForcibly().waitFor();
+				return null;
+			}
+			String s = new String(Files.readAllBytes(out.toPath()));
+			return s.replaceAll("\\r?\\nCompletion took \\d+ ms", "").replaceAll("at address \\d+", "at address");
+		} finally {
+			out.delete();
+		}
+	}
+
+	private static String base(String source) {
+		int i = source.lastIndexOf('.');
+		return i < 0 ? source : source.substring(0, i);
+	}
+
+	// Check one program; returns false if the outputs differ
+	private static boolean check(String source) throws IOException, InterruptedException {
+		String base = base(source);
+		File opt = File.createTempFile("mjtest", ".obj"), noopt = File.createTempFile("mjtest", ".obj");
+		try {
+			if (!compile(source, opt.getPath(), true) || !compile(source, noopt.getPath(), false)) {
+				System.out.println("-- " + source + ": errors detected");
+				return false;
+			}
+			File in = new File(base + ".in"), expected = new File(base + ".out");
+			String x = run(opt.getPath(), in), y = run(noopt.getPath(), in);
+			if (x == null || y == null) {
+				System.out.println("-- " + source + ": no completion after " + timeout + " s" + (x == null ? "" : " with -noopt"));
+				return false;
+			}
+			if (!x.equals(y)) {
+				System.out.println("-- " + source + ": the output is\n" + x + "\n   and with -noopt\n" + y);
+				return false;
+			}
+			if (expected.exists()) {
+				String z = new String(Files.readAllBytes(expected.toPath())).replace("\r\n", "\n");
+				if (!x.equals(z)) {
+					System.out.println("-- " + source + ": the output is\n" + x + "\n   instead of\n" + z);
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			opt.delete(); noopt.delete();
+		}
+	}
+
+	// Main method of the optimizer tester
+	public static void main(String args[]) {
+		if (args.length == 0) {
+			System.out.println("-- synopsis: java MJ.TestOptimizer {<inputfileName>}");
+			return;
+		}
+		int bad = 0;
+		for (String source : args) {
+			try {
+				if (!check(source)) bad++;
+			} catch (IOException e) {
+				System.out.println("-- cannot open input file " + source);
+				bad++;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		System.out.println(args.length + " programs, " + bad + " with different output");
+	}
+
+}
@@ -18,9 +18,8 @@ public class TestParser {
 		if (args.length > 0) {
 			String source = args[0];
 			try {
-				Scanner.init(new InputStreamReader(new FileInputStream(source)));
-				Parser.parse();
-				System.out.println(Parser.errors + " errors detected");
+				Compilation c = new Compilation();
+				System.out.println(c.compile(source) + " errors detected");
 			} catch (IOException e) {
 				System.out.println("-- cannot open input file " + source);
 			}
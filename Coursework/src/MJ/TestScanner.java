@@ -9,6 +9,7 @@
 package MJ;
 
 import java.io.*;
+import MJ.SymTab.Names;
 
 public class TestScanner {
 	private static final int  // token codes
@@ -96,17 +97,21 @@ public class TestScanner {
 		if (args.length > 0) {
 			String source = args[0];
 			try {
-				Scanner.init(new InputStreamReader(new FileInputStream(source)));
+				Diagnostics diag = new Diagnostics(Diagnostics.ERRORS, System.out);
+				PrintWriter out = diag.out;
+				Scanner scanner = new Scanner(new Names(), diag);
+				scanner.init(source);
 				do {
-					t = Scanner.next();
-					System.out.print("line " + t.line + ", col " + t.col + ": " + tokenName[t.kind]);
+					t = scanner.next();
+					out.print("line " + t.line + ", col " + t.col + ": " + tokenName[t.kind]);
 					switch (t.kind) {
-						case ident:   System.out.println(t.string); break;
-						case number:  System.out.println(t.val); break;
-						case charCon: System.out.println(t.val); break;
-						default: System.out.println(); break;
+						case ident:   out.println(t.string); break;
+						case number:  out.println(t.val); break;
+						case charCon: out.println(t.val); break;
+						default: out.println(); break;
 					}
 				} while (t.kind != eof);
+				diag.flush();
 			} catch (IOException e) {
 				System.out.println("-- cannot open input file " + source);
 			}
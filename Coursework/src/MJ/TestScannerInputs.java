@@ -0,0 +1,293 @@
+/* MicroJava Scanner Input Tester
+   =============================
+   Place this file in a subdirectory MJ
+   Compile with
+     javac MJ\TestScannerInputs.java
+   Run with
+     java MJ.TestScannerInputs [<inputs>]
+   Scans random inputs with the Scanner and with a simple reference scanner
+   that reads one character at a time and looks keywords up in a list. The
+   tokens (kind, line, column, value or name) and the error messages must
+   be the same. The inputs consist of keywords and names that come close
+   to them (prefixes and extensions of keywords, keywords with one
+   character changed, and names with the same keyword hash), names with
+   non-ASCII letters and digits, numbers (also too large ones), valid and
+   invalid character constants, operators and comments (also at the end of
+   the input), separated by blanks, tabs, CR LF, vertical tabs and form
+   feeds. The inputs are scanned in UTF-8; a comment at the end of the
+   input may also contain invalid UTF-8 (stray continuation bytes,
+   truncated and overlong sequences), which the reference scanner decodes
+   byte by byte like the Scanner.
+*/
+package MJ;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import MJ.SymTab.Names;
+
+public class TestScannerInputs {
+	private static final int  // token codes
+		none      = 0,
+		ident     = 1,
+		number    = 2,
+		charCon   = 3,
+		plus      = 4,
+		minus     = 5,
+		times     = 6,
+		slash     = 7,
+		rem       = 8,
+		eql       = 9,
+		neq       = 10,
+		lss       = 11,
+		leq       = 12,
+		gtr       = 13,
+		geq       = 14,
+		assign    = 15,
+		semicolon = 16,
+		comma     = 17,
+		period    = 18,
+		lpar      = 19,
+		rpar      = 20,
+		lbrack    = 21,
+		rbrack    = 22,
+		lbrace    = 23,
+		rbrace    = 24,
+		eof       = 36;
+	private static final String key[] = {
+		"class", "else", "final", "if", "new", "print",
+		"program", "read", "return", "void", "while"
+	};
+
+	// Scanner that reads one character at a time (like the first MicroJava scanner)
+	private static class Reference {
+		private static final char eofCh = '\u0080';	// as in Scanner
+		private final String src;
+		private int pos;			// index of the character after ch
+		private char ch;			// lookahead character
+		private int line = 1, col;
+		final List<String> errors = new ArrayList<String>();
+
+		Reference(String src) {
+			this.src = src;
+			nextCh();
+		}
+
+		private void nextCh() {
+			ch = pos < src.length() ? src.charAt(pos) : eofCh;
+			pos++; col++;
+			if (ch == '\n') {line++; col = 0;}
+		}
+
+		private void error(String msg) {
+			errors.add("-- line " + line + " col " + col + ": " + msg);
+		}
+
+		Token next() {
+			for (;;) {
+				while (ch <= ' ') nextCh();
+				if (ch != '/' || pos >= src.length() || src.charAt(pos) != '/') break;
+				while (ch != '\n' && ch != eofCh) nextCh();
+			}
+			Token t = new Token();
+			t.line = line; t.col = col;
+			if (Character.isLetter(ch)) {
+				StringBuilder sb = new StringBuilder();
+				do {sb.append(ch); nextCh();} while (Character.isLetterOrDigit(ch));
+				t.string = sb.toString();
+				t.kind = Arrays.asList(key).contains(t.string) ? 25 + Arrays.asList(key).indexOf(t.string) : ident;
+				if (t.kind != ident) t.string = null;
+			} else if (Character.isDigit(ch)) {
+				StringBuilder sb = new StringBuilder();
+				do {sb.append(ch); nextCh();} while (Character.isDigit(ch));
+				t.kind = number;
+				try {
+					t.val = Integer.parseInt(sb.toString());
+				} catch (NumberFormatException e) {
+					error("Number format error or overflow: " + sb);
+					t.kind = none;
+				}
+			} else if (ch == '\'') {
+				nextCh();
+				if (ch == '\'') {
+					error("Empty character constant");
+					nextCh();
+					t.kind = none;
+				} else {
+					if (ch == '\\') {
+						nextCh();
+						int i = "ntr'\\".indexOf(ch);
+						if (i >= 0) t.val = "\n\t\r'\\".charAt(i); else error("Invalid escape character");
+					} else t.val = ch;
+					nextCh();
+					if (ch != '\'') {
+						error("Character constant not properly closed");
+						t.kind = none;
+						while (ch != '\'' && ch != '\n' && ch != eofCh) nextCh();
+						if (ch == '\'') nextCh();
+					} else {
+						nextCh();
+						t.kind = charCon;
+					}
+				}
+			} else if (ch == eofCh) t.kind = eof;
+			else {
+				char c = ch;
+				nextCh();
+				int i = "+-*/%;,.()[]{}".indexOf(c);
+				if (i >= 0) t.kind = plus + (i < 5 ? i : i + 7);
+				else if (c == '=' || c == '<' || c == '>' || c == '!') {
+					boolean eq = ch == '=';
+					if (eq) nextCh();
+					switch (c) {
+						case '=': t.kind = eq ? eql : assign; break;
+						case '<': t.kind = eq ? leq : lss; break;
+						case '>': t.kind = eq ? geq : gtr; break;
+						default:  t.kind = eq ? neq : none;
+					}
+				} else t.kind = none;
+			}
+			return t;
+		}
+	}
+
+	//---------- random inputs
+
+	private static Random rnd = new Random(1);
+
+	private static String pick(String[] a) {
+		return a[rnd.nextInt(a.length)];
+	}
+
+	// A keyword or a name that comes close to one
+	private static String name() {
+		String k = pick(key);
+		StringBuilder sb = new StringBuilder(k);
+		switch (rnd.nextInt(6)) {
+			case 0: return k;
+			case 1: return k.substring(0, 1 + rnd.nextInt(k.length()));	// prefix
+			case 2: return k + (char)('a' + rnd.nextInt(26));	// extension
+			case 3: sb.setCharAt(rnd.nextInt(k.length()), (char)('a' + rnd.nextInt(26))); return sb.toString();
+			case 4: sb.setCharAt(rnd.nextInt(k.length()), Character.toUpperCase(k.charAt(0))); return sb.toString();
+			default:	// first and last letter changed, keeping first + last (the keyword hash)
+				int d = 1 + rnd.nextInt(3);
+				char first = (char)(k.charAt(0) + d), last = (char)(k.charAt(k.length() - 1) - d);
+				if (!Character.isLetter(first) || !Character.isLetter(last)) return k;
+				sb.setCharAt(0, first); sb.setCharAt(k.length() - 1, last);
+				return sb.toString();
+		}
+	}
+
+	// Anything else the scanner reads; the character U+0080 is left out
+	// because the scanners use it for the end of the input
+	private static final String[]
+		letters = {"a", "Z", "_", "\u00e9", "\u00df", "\u03bb", "\u4e2d", "\ud835\udc9c", "1", "\u0663"},
+		numbers = {"0", "7", "042", "65535", "2147483647", "2147483648", "99999999999", "\u0663\u0664"},
+		chars   = {"'a'", "' '", "'\u00e9'", "'\\n'", "'\\t'", "'\\r'", "'\\''", "'\\\\'",
+		           "''", "'\\x'", "'ab'", "'a", "'", "'\\"},
+		ops     = {"+", "-", "*", "/", "%", "==", "!=", "<", "<=", ">", ">=", "=", "!", ";", ",", ".",
+		           "(", ")", "[", "]", "{", "}", "#", "\u00a7", "\ud83d\ude00"},
+		blanks  = {" ", " ", "\n", "\t", "\r\n", "\u000b", "\f", ""};
+	private static final byte[][] badUtf8 = {	// invalid UTF-8 (none decodes to U+0080)
+		{(byte)0x80}, {(byte)0x80, (byte)0x80}, {(byte)0xbf}, {(byte)0xc3}, {(byte)0xe4, (byte)0xb8},
+		{(byte)0xf0, (byte)0x9f, (byte)0x98}, {(byte)0xf0, (byte)0x80, (byte)0x80, (byte)0x80},
+		{(byte)0xc3, 'a'}, {(byte)0xf8}, {(byte)0xff}
+	};
+
+	private static String token() {
+		switch (rnd.nextInt(6)) {
+			case 0: case 1: return name();
+			case 2:	// a name with other letters and digits
+				StringBuilder sb = new StringBuilder(pick(letters).equals("1") ? "x" : pick(letters));
+				for (int n = rnd.nextInt(4); n > 0; n--) sb.append(pick(letters));
+				return sb.toString();
+			case 3: return pick(numbers);
+			case 4: return pick(chars);
+			default: return rnd.nextInt(8) > 0 ? pick(ops) : "// " + name() + " " + pick(chars);
+		}
+	}
+
+	private static byte[] input() {
+		StringBuilder sb = new StringBuilder();
+		for (int n = rnd.nextInt(40); n > 0; n--) {
+			sb.append(token());
+			sb.append(pick(blanks));
+		}
+		java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+		out.writeBytes(sb.toString().getBytes(StandardCharsets.UTF_8));
+		switch (rnd.nextInt(8)) {	// comment at the end of the input
+			case 0: case 1:
+				out.writeBytes(("//" + name()).getBytes(StandardCharsets.UTF_8));
+				break;
+			case 2:	// with invalid UTF-8
+				out.writeBytes(("// " + name()).getBytes(StandardCharsets.UTF_8));
+				for (int n = 1 + rnd.nextInt(3); n > 0; n--) {
+					out.writeBytes(badUtf8[rnd.nextInt(badUtf8.length)]);
+					if (rnd.nextBoolean()) out.writeBytes(pick(letters).getBytes(StandardCharsets.UTF_8));
+				}
+				break;
+		}
+		return out.toByteArray();
+	}
+
+	// Decode UTF-8 like the Scanner: a lead byte takes as many of the expected
+	// continuation bytes as follow it; an incomplete sequence or a stray byte is U+FFFD
+	private static String decode(byte[] b) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < b.length; ) {
+			int x = b[i++] & 0xff, n, c;
+			if (x < 0x80) {sb.append((char)x); continue;}
+			if ((x & 0xe0) == 0xc0) {n = 1; c = x & 0x1f;}
+			else if ((x & 0xf0) == 0xe0) {n = 2; c = x & 0x0f;}
+			else if ((x & 0xf8) == 0xf0) {n = 3; c = x & 0x07;}
+			else {sb.append('\ufffd'); continue;}
+			for (; n > 0 && i < b.length && (b[i] & 0xc0) == 0x80; n--) c = (c << 6) | (b[i++] & 0x3f);
+			if (n > 0) sb.append('\ufffd'); else sb.appendCodePoint(c);
+		}
+		return sb.toString();
+	}
+
+	//---------- comparison
+
+	private static String show(Token t) {
+		return t.kind + " at " + t.line + "," + t.col + (t.kind == ident ? " " + t.string : " " + t.val);
+	}
+
+	// Scan src with both scanners; returns the number of tokens, or -1 if they differ
+	private static int compare(byte[] src) {
+		int n;
+		Diagnostics diag = new Diagnostics();
+		Scanner s = new Scanner(new Names(), diag);
+		s.init(src);
+		Reference r = new Reference(decode(src));
+		for (n = 1; ; n++) {
+			Token x = s.next(), y = r.next();
+			if (x.kind == ident) x.val = 0;
+			if (!show(x).equals(show(y))) {
+				System.out.println("-- token " + n + ": " + show(x) + " instead of " + show(y));
+				return -1;
+			}
+			if (x.kind == eof) break;
+		}
+		if (!diag.errors().equals(r.errors)) {
+			System.out.println("-- errors " + diag.errors() + " instead of " + r.errors);
+			return -1;
+		}
+		return n;
+	}
+
+	// Main method of the scanner input tester
+	public static void main(String args[]) {
+		int inputs = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int bad = 0, tokens = 0;
+		for (int i = 0; i < inputs; i++) {
+			byte[] src = input();
+			int n = compare(src);
+			if (n < 0) {
+				bad++;
+				System.out.println("   in input " + i + ": \"" + decode(src).replace("\n", "\\n") + "\"");
+			} else tokens += n;
+		}
+		System.out.println(inputs + " inputs (" + tokens + " tokens), " + bad + " scanned differently");
+	}
+
+}
@@ -0,0 +1,115 @@
+/* MicroJava Semantic Tester
+   =========================
+   Place this file in a subdirectory MJ
+   Compile with
+     javac MJ\TestSemantics.java
+   Run with
+     java MJ.TestSemantics {<inputFileName>}
+   Compiles every program and compares its error messages with the file
+   <name>.err (one message per line); a program without such a file must
+   compile without errors. If it does and there is a file <name>.out, the
+   program is run with MJ.Run and its output must be the same as in that
+   file, apart from the run time and the code address of an exception.
+   The program reads its input from <name>.in if that file exists.
+*/
+package MJ;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+public class TestSemantics {
+	private static final int timeout = 10;	// seconds per run
+
+	private static String base(String source) {
+		int i = source.lastIndexOf('.');
+		return i < 0 ? source : source.substring(0, i);
+	}
+
+	private static List<String> lines(File f) throws IOException {
+		if (!f.exists()) return new ArrayList<String>();
+		return Arrays.asList(new String(Files.readAllBytes(f.toPath())).replace("\r\n", "\n").split("\n"));
+	}
+
+	// Run obj with MJ.Run in its own VM, since Run is all static and
+	// uses System.in and System.out; returns null after a timeout
+	private static String run(String obj, File in) throws IOException, InterruptedException {
+		File out = File.createTempFile("mjtest", ".txt");
+		try {
+			ProcessBuilder pb = new ProcessBuilder(
+				Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+				"-cp", System.getProperty("java.class.path"), "MJ.Run", obj);
+			if (in.exists()) pb.redirectInput(in);
+			pb.redirectErrorStream(true).redirectOutput(out);
+			Process p = pb.start();
+			if (!in.exists()) p.getOutputStream().close();
+			if (!p.waitFor(timeout, TimeUnit.SECONDS)) {
+				p.destroyForcibly().waitFor();
+				return null;
+			}
+			String s = new String(Files.readAllBytes(out.toPath()));
+			return s.replaceAll("\\r?\\nCompletion took \\d+ ms", "").replaceAll("at address \\d+", "at address");
+		} finally {
+			out.delete();
+		}
+	}
+
+	// Check one program; returns false if its errors or its output differ
+	private static boolean check(String source) throws IOException, InterruptedException {
+		String base = base(source);
+		Compilation c = new Compilation(new Diagnostics());
+		c.compile(source);
+		List<String> errors = c.diag.errors(), expected = lines(new File(base + ".err"));
+		if (!errors.equals(expected)) {
+			System.out.println("-- " + source + ": the errors are");
+			for (String e : errors) System.out.println("   " + e);
+			System.out.println("   instead of");
+			for (String e : expected) System.out.println("   " + e);
+			return false;
+		}
+		File expectedOut = new File(base + ".out");
+		if (!errors.isEmpty() || !expectedOut.exists()) return true;
+		File obj = File.createTempFile("mjtest", ".obj");
+		try {
+			OutputStream s = new FileOutputStream(obj);
+			c.write(s);
+			s.close();
+			String x = run(obj.getPath(), new File(base + ".in"));
+			if (x == null) {
+				System.out.println("-- " + source + ": no completion after " + timeout + " s");
+				return false;
+			}
+			String z = new String(Files.readAllBytes(expectedOut.toPath())).replace("\r\n", "\n");
+			if (!x.equals(z)) {
+				System.out.println("-- " + source + ": the output is\n" + x + "\n   instead of\n" + z);
+				return false;
+			}
+			return true;
+		} finally {
+			obj.delete();
+		}
+	}
+
+	// Main method of the semantic tester
+	public static void main(String args[]) {
+		if (args.length == 0) {
+			System.out.println("-- synopsis: java MJ.TestSemantics {<inputfileName>}");
+			return;
+		}
+		int bad = 0;
+		for (String source : args) {
+			try {
+				if (!check(source)) bad++;
+			} catch (IOException e) {
+				System.out.println("-- cannot open input file " + source);
+				bad++;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		System.out.println(args.length + " programs, " + bad + " failed");
+	}
+
+}
@@ -7,6 +7,6 @@ public class Token {
 	public int kind;		// token kind
 	public int line;		// token line
 	public int col;			// token column
-	public int val;			// token value (for number and charConst)
+	public int val;			// token value (for number and charConst), name id (for ident)
 	public String string;	// token string
 }
\ No newline at end of file
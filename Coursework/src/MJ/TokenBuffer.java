@@ -0,0 +1,47 @@
+/* MicroJava Token Buffer
+   ====================
+A chunk of scanned tokens stored in parallel arrays instead of one Token
+object per token (see Scanner.fill). Identifier text is kept as a position
+in the source buffer and only turned into a String by string(i).
+*/
+package MJ;
+
+import java.nio.ByteBuffer;
+
+public class TokenBuffer {
+	public int[] kind;		// token kind
+	public int[] line;		// token line
+	public int[] col;			// token column
+	public int[] val;			// token value (for number and charConst), name id (for ident)
+	public int[] off;			// index of the first token byte in src
+	public int[] len;			// token length in bytes
+	public int   size;		// number of tokens in this buffer
+	ByteBuffer   src;			// source bytes that off and len refer to
+
+	public TokenBuffer(int capacity) {
+		kind = new int[capacity];
+		line = new int[capacity];
+		col  = new int[capacity];
+		val  = new int[capacity];
+		off  = new int[capacity];
+		len  = new int[capacity];
+	}
+
+	// Append a token
+	void add(int kind, int line, int col, int val, int off, int len) {
+		int i = size++;
+		this.kind[i] = kind; this.line[i] = line; this.col[i] = col;
+		this.val[i] = val; this.off[i] = off; this.len[i] = len;
+	}
+
+	// Replace the contents of this buffer by token j of b
+	public void set(TokenBuffer b, int j) {
+		size = 0; src = b.src;
+		add(b.kind[j], b.line[j], b.col[j], b.val[j], b.off[j], b.len[j]);
+	}
+
+	// Source text of token i (e.g. the name of an identifier)
+	public String string(int i) {
+		return Scanner.string(src, off[i], len[i]);
+	}
+}
@@ -0,0 +1,153 @@
+/* MicroJava Token Pipe
+   ===================
+Runs a scanner on its own thread ahead of the parser. The scanner fills the
+chunks of a bounded ring buffer and publishes every full chunk by advancing
+tail; the parser consumes the chunks in order and releases them by advancing
+head. There is exactly one producer and one consumer, so no locks are needed:
+each counter is written by one side only and read by the other.
+
+The lexical errors of a chunk are collected with it and reported when the
+parser takes the chunk, so they appear at the same point as without a pipe,
+however far the scanner has run ahead. If the scanner thread fails, the
+exception is thrown again to the parser when it waits for the next chunk.
+*/
+package MJ;
+
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+public class TokenPipe implements TokenSource {
+	private static final int eof = 36;	// token code
+	private static final int spins = 200;	// busy-wait rounds before parking
+
+	// Lexical error found while filling a chunk
+	private static class LexError {
+		int line, col;
+		String msg;
+	}
+
+	// Collects the errors of one chunk of the ring
+	private static class Errors extends Diagnostics {
+		List<LexError> list = new ArrayList<LexError>();
+
+		public void error(int line, int col, String msg) {
+			LexError e = new LexError();
+			e.line = line; e.col = col; e.msg = msg;
+			list.add(e);
+		}
+	}
+
+	private final Scanner scanner;
+	private final Diagnostics diag;		// receives the errors of the taken chunks
+	private final TokenBuffer[] ring;		// chunks; chunk n is ring[n & mask]
+	private final Errors[] errors;		// errors of chunk n are errors[n & mask]
+	private final int mask;
+	private volatile long head;		// number of chunks released by the consumer
+	private volatile long tail;		// number of chunks published by the producer
+	private volatile boolean closed;
+	private volatile Throwable failure;	// exception of the scanner thread, or null
+	private volatile boolean producerWaiting;	// producer is parked or about to park
+	private volatile Thread consumerWaiting;	// consumer that is parked or about to park, or null
+	private Thread producer;
+	private long taken;			// consumer: number of chunks returned by nextChunk
+
+	// Pipe with a ring of chunks (a power of 2) buffers of chunkSize tokens
+	public TokenPipe(Scanner scanner, int chunks, int chunkSize) {
+		this.scanner = scanner;
+		diag = scanner.diag;
+		ring = new TokenBuffer[chunks];
+		errors = new Errors[chunks];
+		for (int i = 0; i < chunks; i++) {ring[i] = new TokenBuffer(chunkSize); errors[i] = new Errors();}
+		mask = chunks - 1;
+	}
+
+	public TokenPipe(Scanner scanner) {
+		this(scanner, 8, 1024);
+	}
+
+	// Producer: wait until the consumer has released a chunk of the full ring
+	// (the ring is checked again after producerWaiting is set, so that either
+	// this check sees the release or the consumer sees producerWaiting)
+	private void pauseProducer(int round, long n) {
+		if (round < spins) Thread.onSpinWait();
+		else {
+			producerWaiting = true;
+			if (n - head == ring.length && !closed) LockSupport.parkNanos(this, 100000);
+			producerWaiting = false;
+		}
+	}
+
+	// Consumer: wait until the producer has published a chunk or failed
+	private void pauseConsumer(int round) {
+		if (round < spins) Thread.onSpinWait();
+		else {
+			consumerWaiting = Thread.currentThread();
+			if (tail == taken && failure == null) LockSupport.parkNanos(this, 100000);
+			consumerWaiting = null;
+		}
+	}
+
+	private void wakeProducer() {
+		if (producerWaiting) LockSupport.unpark(producer);
+	}
+
+	private void wakeConsumer() {
+		Thread t = consumerWaiting;
+		if (t != null) LockSupport.unpark(t);
+	}
+
+	private void produce() {
+		try {
+			for (long n = 0; !closed; n++) {
+				for (int round = 0; n - head == ring.length; round++) { // ring is full
+					if (closed) return;
+					pauseProducer(round, n);
+				}
+				TokenBuffer b = ring[(int)n & mask];
+				Errors e = errors[(int)n & mask];
+				e.list.clear();
+				scanner.diag = e;
+				scanner.fill(b);
+				tail = n + 1;
+				wakeConsumer();
+				if (b.kind[b.size - 1] == eof) return;
+			}
+		} catch (Throwable t) {
+			failure = t;
+			wakeConsumer();
+		}
+	}
+
+	public TokenBuffer nextChunk() {
+		if (producer == null) {
+			producer = new Thread(this::produce, "MJ scanner");
+			producer.setDaemon(true);
+			producer.start();
+		}
+		head = taken;	// release the previous chunk
+		wakeProducer();
+		for (int round = 0; tail == taken; round++) {
+			Throwable t = failure;
+			if (t instanceof RuntimeException) throw (RuntimeException)t;
+			if (t instanceof Error) throw (Error)t;
+			if (t != null) throw new RuntimeException(t);
+			pauseConsumer(round);
+		}
+		for (LexError e : errors[(int)taken & mask].list) diag.error(e.line, e.col, e.msg);
+		return ring[(int)taken++ & mask];
+	}
+
+	// Stop the scanner thread and give the scanner its Diagnostics back
+	public void close() {
+		closed = true;
+		if (producer != null) {
+			LockSupport.unpark(producer);
+			boolean interrupted = false;
+			for (;;) {
+				try {producer.join(); break;} catch (InterruptedException e) {interrupted = true;}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+		scanner.diag = diag;
+	}
+}
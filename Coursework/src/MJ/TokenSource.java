@@ -0,0 +1,15 @@
+/* MicroJava Token Source
+   =====================
+Delivers the token stream to the parser in chunks.
+*/
+package MJ;
+
+public interface TokenSource {
+
+	// Return the next chunk of tokens. The last chunk ends with the eof token.
+	// The chunk returned by the previous call must no longer be used.
+	TokenBuffer nextChunk();
+
+	// Release all resources; no more chunks will be requested
+	void close();
+}